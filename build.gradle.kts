@@ -17,7 +17,24 @@ dependencies {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("soak")
+    }
+}
+
+// Large scale soak and memory footprint tests, see MerkleTreeSoakTest.
+// ./gradlew soakTest -Psoak.maxLeaves=100000000 -Psoak.maxHeap=32g
+val soakTest by tasks.registering(Test::class) {
+    description = "Runs the large scale soak and memory footprint tests."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("soak")
+    }
+    maxHeapSize = project.findProperty("soak.maxHeap") as String? ?: "4g"
+    systemProperty("merkle.soak.maxLeaves", project.findProperty("soak.maxLeaves") as String? ?: "1000000")
+    shouldRunAfter(tasks.test)
 }
 
 publishing {
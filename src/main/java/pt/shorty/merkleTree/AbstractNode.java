@@ -1,5 +1,6 @@
 package pt.shorty.merkleTree;
 
+import java.util.List;
 
 /**
  * An abstract node of the merkel tree.
@@ -13,6 +14,12 @@ public abstract class AbstractNode<V extends Comparable<V>> {
      */
     private final int level;
 
+    /**
+     * If this node is shared between trees by a {@link SubtreeInterner}, in which case it has no parent
+     * and can't be changed
+     */
+    private boolean shared;
+
     /**
      * Constructor for AbstractNode. Takes
      * only one param
@@ -35,18 +42,26 @@ public abstract class AbstractNode<V extends Comparable<V>> {
     abstract boolean isLeaf();
 
     /**
-     * Checks if this node is the left node of it's parent
-     * @return - True if it's the left, false if it's the right
+     * Checks if this node is the left node, the first child, of it's parent
+     * @return - True if it's the left, false if it's the right, a middle child or has no parent
+     * @throws IllegalStateException - If this node is shared between trees, where it may be a left node in one and not in another
      */
     public final boolean isLeft() {
-        return !isRight();
+        checkNotSharedForPosition();
+        Node<V> parent = getParent();
+        return parent != null && parent.isLeftNode(this);
     }
 
     /**
-     * Checks if this node is the right node of it's parent
-     * @return - True if it's the right, false if it's the left
+     * Checks if this node is the right node, the last child, of it's parent
+     * @return - True if it's the right, false if it's the left, a middle child or has no parent
+     * @throws IllegalStateException - If this node is shared between trees, where it may be a right node in one and not in another
      */
-    public abstract boolean isRight();
+    public final boolean isRight() {
+        checkNotSharedForPosition();
+        Node<V> parent = getParent();
+        return parent != null && parent.isRightNode(this);
+    }
 
     /**
      * Gets the current level of the node
@@ -56,6 +71,39 @@ public abstract class AbstractNode<V extends Comparable<V>> {
         return level;
     }
 
+    /**
+     * Checks if this node is shared between trees, see {@link SubtreeInterner}
+     * @return - True if this node is shared
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Marks this node as shared between trees. A shared node can't be changed, nor be given a parent
+     */
+    void markShared() {
+        shared = true;
+    }
+
+    /**
+     * Throws if this node is shared between trees, a change would show in every tree using it
+     */
+    void checkNotShared() {
+        if (shared) {
+            throw new IllegalStateException("Node at level " + level + " is shared with other trees, it can't be changed");
+        }
+    }
+
+    /**
+     * Throws if this node is shared between trees, a shared node has no single parent, so no single position
+     */
+    void checkNotSharedForPosition() {
+        if (shared) {
+            throw new IllegalStateException("Node at level " + level + " is shared with other trees, it has no single position");
+        }
+    }
+
     /**
      * Sets the parent of this node
      * @param node - The parent node
@@ -63,16 +111,28 @@ public abstract class AbstractNode<V extends Comparable<V>> {
     abstract void setParent(Node<V> node);
 
     /**
-     * Gets the left child of this node.
+     * Gets the parent of this node
+     * @return - The parent node, or null if this node has none
+     */
+    abstract Node<V> getParent();
+
+    /**
+     * Gets the left child of this node, the first one.
      * Implementation of this might return null!!
      * @return - The left child or null
      */
     abstract AbstractNode<V> getLeftChild();
 
     /**
-     * Gets the right child of this node.
+     * Gets the right child of this node, the last one. A node with a single child only has a left child.
      * Implementation of this might return null!!
      * @return - The right child or null
      */
     abstract AbstractNode<V> getRightChild();
+
+    /**
+     * Gets all the children of this node, ordered from left to right
+     * @return - The children, empty for a leaf
+     */
+    abstract List<AbstractNode<V>> getChildren();
 }
@@ -0,0 +1,244 @@
+package pt.shorty.merkleTree;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps a {@link MerkleTree} so that leaf updates don't pay for rehashing the tree.
+ * Updates are queued and coalesced (only the last update of a leaf is kept) and a background worker applies them
+ * in a single {@link MerkleTree#applyBatch(Map)}, at most max staleness after the first queued update.
+ * Readers either take the last computed root with {@link #getRootHash()}, which is at most max staleness old,
+ * or wait for a root that includes every update queued so far with {@link #rootHashAsync()}.
+ * If a batch fails to apply its updates are queued again, unless a newer update of the same leaf was queued since.
+ * The failure goes to the futures waiting for that batch, or, if none was waiting, is kept and thrown or
+ * returned by the next {@link #getRootHash()}, {@link #rootHashAsync()} or {@link #flush()}.
+ * The wrapped tree is owned by the worker, it must not be used directly while wrapped.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class AsyncMerkleTree<V extends Comparable<V>, T extends Hashable<V>> implements AutoCloseable {
+
+    private final MerkleTree<V, T> tree;
+
+    private final long maxStalenessNanos;
+
+    private final ScheduledExecutorService worker;
+
+    private final Object lock = new Object();
+
+    /**
+     * The updates not applied yet, keyed by leaf index. Guarded by lock
+     */
+    private Map<Integer, T> pendingUpdates = new HashMap<>();
+
+    /**
+     * The futures waiting for the next flush. Guarded by lock
+     */
+    private List<CompletableFuture<V>> pendingRoots = new ArrayList<>();
+
+    /**
+     * If a flush is already scheduled. Guarded by lock
+     */
+    private boolean flushScheduled;
+
+    private boolean closed;
+
+    /**
+     * The root hash as of the last flush
+     */
+    private volatile V rootHash;
+
+    /**
+     * The failure of a batch no future was waiting for, kept until it's reported
+     */
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    /**
+     * Creates a new async tree
+     * @param tree - The tree to wrap
+     * @param maxStaleness - The max time an update stays queued before being applied
+     */
+    public AsyncMerkleTree(MerkleTree<V, T> tree, Duration maxStaleness) {
+        if (maxStaleness.isNegative()) {
+            throw new IllegalArgumentException("Invalid max staleness " + maxStaleness + ". Max staleness can't be negative");
+        }
+        this.tree = tree;
+        this.maxStalenessNanos = maxStaleness.toNanos();
+        this.rootHash = tree.getRootHash();
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "merkle-async-root");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the update of a single leaf
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @param data - The new data of the leaf
+     */
+    public void update(int index, T data) {
+        Map<Integer, T> updates = new HashMap<>();
+        updates.put(index, data);
+        updateAll(updates);
+    }
+
+    /**
+     * Queues the update of several leafs. Updates replace any queued update of the same leaf
+     * @param updates - The new data for each leaf, keyed by the index of the leaf
+     */
+    public void updateAll(Map<Integer, T> updates) {
+        for (Integer index : updates.keySet()) {
+            if (index == null || index < 0 || index >= tree.getLeafCount()) {
+                throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (tree.getLeafCount() - 1));
+            }
+        }
+        synchronized (lock) {
+            checkOpen();
+            pendingUpdates.putAll(updates);
+            scheduleFlush(maxStalenessNanos);
+        }
+    }
+
+    /**
+     * Gets the root hash as of the last time the queued updates were applied, which
+     * is at most max staleness old. Never blocks
+     * @return - The last computed root hash
+     * @throws IllegalStateException - If a batch failed since the last call and no future reported it, the failed
+     * updates are queued again and applied with the next batch
+     */
+    public V getRootHash() {
+        RuntimeException e = failure.getAndSet(null);
+        if (e != null) {
+            throw new IllegalStateException("Queued updates failed to apply, they are queued again", e);
+        }
+        return rootHash;
+    }
+
+    /**
+     * Gets the root hash including every update queued before this call. The future completes when the
+     * queued updates are applied, which is at most max staleness after the oldest of them was queued.
+     * If a batch failed with no future waiting for it, the future fails right away with that failure
+     * @return - A future of the root hash
+     */
+    public CompletableFuture<V> rootHashAsync() {
+        synchronized (lock) {
+            checkOpen();
+            CompletableFuture<V> future = new CompletableFuture<>();
+            if (completeWithFailure(future)) {
+                return future;
+            }
+            pendingRoots.add(future);
+            //with nothing queued there's no flush coming, so one is forced right away. It's cheap, there's nothing to apply
+            scheduleFlush(pendingUpdates.isEmpty() ? 0 : maxStalenessNanos);
+            return future;
+        }
+    }
+
+    /**
+     * Applies the queued updates right away, without waiting for max staleness.
+     * If a batch failed with no future waiting for it, the future fails right away with that failure and
+     * nothing is applied, the next flush applies the updates queued again
+     * @return - A future of the root hash including every update queued before this call
+     */
+    public CompletableFuture<V> flush() {
+        synchronized (lock) {
+            checkOpen();
+            CompletableFuture<V> future = new CompletableFuture<>();
+            if (completeWithFailure(future)) {
+                return future;
+            }
+            pendingRoots.add(future);
+            flushScheduled = true;
+            worker.execute(this::applyPending);
+            return future;
+        }
+    }
+
+    /**
+     * Stops the worker. Updates already queued are still applied
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!pendingUpdates.isEmpty() || !pendingRoots.isEmpty()) {
+                worker.execute(this::applyPending);
+            }
+        }
+        worker.shutdown();
+    }
+
+    private void scheduleFlush(long delayNanos) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        worker.schedule(this::applyPending, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Completes the future with the failure of a batch no future was waiting for, if there is one
+     * @return - True if the future was completed
+     */
+    private boolean completeWithFailure(CompletableFuture<V> future) {
+        RuntimeException e = failure.getAndSet(null);
+        if (e == null) {
+            return false;
+        }
+        future.completeExceptionally(e);
+        return true;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Async tree is closed");
+        }
+    }
+
+    /**
+     * Runs on the worker, applies everything queued so far in a single batch
+     */
+    private void applyPending() {
+        Map<Integer, T> updates;
+        List<CompletableFuture<V>> roots;
+        synchronized (lock) {
+            updates = pendingUpdates;
+            roots = pendingRoots;
+            pendingUpdates = new HashMap<>();
+            pendingRoots = new ArrayList<>();
+            flushScheduled = false;
+        }
+        try {
+            if (!updates.isEmpty()) {
+                tree.applyBatch(updates);
+                rootHash = tree.getRootHash();
+            }
+            for (CompletableFuture<V> root : roots) {
+                root.complete(rootHash);
+            }
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                //a newer update of the same leaf replaces the failed one
+                for (Map.Entry<Integer, T> update : updates.entrySet()) {
+                    pendingUpdates.putIfAbsent(update.getKey(), update.getValue());
+                }
+                if (roots.isEmpty()) {
+                    //the oldest failure not reported yet is kept
+                    failure.compareAndSet(null, e);
+                }
+            }
+            for (CompletableFuture<V> root : roots) {
+                root.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides where the chunks of a file start and end, see {@link FileMerkleTreeBuilder}.
+ * Implementations must be stateless between calls, the same bytes must always produce the same chunks.
+ */
+public interface Chunker {
+
+    /**
+     * Finds the length of the chunk that starts at the position of the supplied buffer.
+     * The position of the buffer must not be changed.
+     * @param data - The bytes from the start of the chunk up to the end of the bytes currently available
+     * @param endOfInput - True if the buffer reaches the end of the input, so no more bytes follow it
+     * @return - The length of the chunk, between 1 and the remaining bytes of the buffer, or -1 if the end of
+     *           the chunk can't be decided with the bytes available. -1 is only allowed if endOfInput is false and
+     *           the buffer holds less than {@link #getMaxChunkLength()} bytes
+     */
+    int nextChunkLength(ByteBuffer data, boolean endOfInput);
+
+    /**
+     * Gets the max length of a chunk produced by this chunker
+     * @return - The max chunk length in bytes
+     */
+    int getMaxChunkLength();
+}
@@ -0,0 +1,107 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Splits the input in chunks whose boundaries depend on the content, not on the offset.
+ * A rolling gear hash is computed over the bytes of the chunk and a boundary is placed where the hash
+ * matches a mask, so after an insert or a removal the boundaries fall back into the same places as soon as the
+ * content is the same again. An edit only changes the chunks around it instead of every chunk that follows it.
+ * Chunks are never smaller than the min size (except for the last one) nor bigger than the max size, and the
+ * mask is harder to match before the average size and easier after it (normalized chunking), which keeps
+ * chunk sizes close to the average.
+ */
+public class ContentDefinedChunker implements Chunker {
+
+    /**
+     * Random values per byte for the gear hash. {@link Random} is fully specified, so the table,
+     * and with it the chunk boundaries, are the same on every JVM
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x4d65726b6c65L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minChunkLength;
+    private final int avgChunkLength;
+    private final int maxChunkLength;
+
+    /**
+     * Mask used before reaching the average length, one bit harder to match than the average
+     */
+    private final long strictMask;
+
+    /**
+     * Mask used after reaching the average length, one bit easier to match than the average
+     */
+    private final long looseMask;
+
+    /**
+     * Creates a new chunker
+     * @param minChunkLength - The min length of a chunk, bytes before it are not even hashed
+     * @param avgChunkLength - The expected average length of a chunk, should be a power of 2
+     * @param maxChunkLength - The max length of a chunk, a boundary is forced if none is found before it
+     */
+    public ContentDefinedChunker(int minChunkLength, int avgChunkLength, int maxChunkLength) {
+        if (minChunkLength <= 0 || minChunkLength > avgChunkLength || avgChunkLength > maxChunkLength) {
+            throw new IllegalArgumentException("Invalid chunk lengths " + minChunkLength + "/" + avgChunkLength + "/"
+                    + maxChunkLength + ". Expected 0 < min <= avg <= max");
+        }
+        int bits = 31 - Integer.numberOfLeadingZeros(avgChunkLength);
+        if (bits < 2) {
+            throw new IllegalArgumentException("Invalid average chunk length " + avgChunkLength + ". Must be at least 4");
+        }
+        this.minChunkLength = minChunkLength;
+        this.avgChunkLength = avgChunkLength;
+        this.maxChunkLength = maxChunkLength;
+        //the gear hash shifts left, so the high bits depend on the most bytes, use them for the masks
+        this.strictMask = -1L << (64 - (bits + 1));
+        this.looseMask = -1L << (64 - (bits - 1));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int nextChunkLength(ByteBuffer data, boolean endOfInput) {
+        int remaining = data.remaining();
+        if (remaining < minChunkLength) {
+            return endOfInput ? remaining : -1;
+        }
+        int start = data.position();
+        int end = Math.min(remaining, maxChunkLength);
+        int normal = Math.min(avgChunkLength, end);
+        long fingerprint = 0;
+        int i = minChunkLength;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data.get(start + i) & 0xFF];
+            if ((fingerprint & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data.get(start + i) & 0xFF];
+            if ((fingerprint & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        if (end == maxChunkLength || endOfInput) {
+            return end;
+        }
+        //more bytes could still hold a boundary
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxChunkLength() {
+        return maxChunkLength;
+    }
+}
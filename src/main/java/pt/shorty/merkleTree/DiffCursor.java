@@ -0,0 +1,118 @@
+package pt.shorty.merkleTree;
+
+import java.util.*;
+
+/**
+ * The position of a streaming diff between two trees, see {@link MerkleTree#diff(MerkleTree, DiffVisitor, int)}.
+ * The cursor holds the pairs of nodes still to be compared, at most fanout per level of the tree, so its memory
+ * does not grow with the size of the trees nor with the differences found, and a diff can be paged through,
+ * or spread over time, without holding the leafs already reported.
+ * Every leaf of the pivot tree that differs is reported, a hash found at two positions is reported twice.
+ * For trees of different depths a leaf of the other tree may be compared against a whole branch of the pivot tree,
+ * the leafs of that branch with the hash of that leaf are not differences. That hash is only kept while the cursor
+ * is inside the branch.
+ * A cursor is only valid while neither tree changes.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class DiffCursor<V extends Comparable<V>, T extends Hashable<V>> {
+
+    /**
+     * The pairs of nodes still to compare, the node of the pivot tree first and the node
+     * at the same position of the other tree second (possibly null)
+     */
+    private final Deque<List<AbstractNode<V>>> pending = new ArrayDeque<>();
+
+    /**
+     * The hash of the leaf of the other tree the current branch of the pivot tree is compared against, null when
+     * the cursor is not inside such a branch. Below that branch the other tree has no nodes, so branches can't nest
+     */
+    private V branchLeafHash;
+
+    /**
+     * The number of pending pairs outside of the current branch, the cursor left the branch once fewer are pending
+     */
+    private int branchBase;
+
+    /**
+     * Creates a cursor at the start of the diff of the supplied roots
+     * @param localRoot - The root of the pivot tree
+     * @param otherRoot - The root of the other tree
+     */
+    DiffCursor(Node<V> localRoot, Node<V> otherRoot) {
+        push(localRoot, otherRoot);
+    }
+
+    /**
+     * Checks if the diff went through both trees
+     * @return - True if no more differences can be found
+     */
+    public boolean isComplete() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Gets the number of entries held by this cursor, the pending pairs and the hash of the current branch
+     * @return - The size of the state of the cursor
+     */
+    int getStateSize() {
+        return pending.size() + (branchLeafHash == null ? 0 : 1);
+    }
+
+    /**
+     * Continues the diff from where it stopped
+     * @param visitor - Receives each difference found
+     * @param maxDifferences - The max number of differences to find before stopping
+     * @return - The number of differences found
+     */
+    public int resume(DiffVisitor<V, T> visitor, int maxDifferences) {
+        int found = 0;
+        while (found < maxDifferences && !pending.isEmpty()) {
+            List<AbstractNode<V>> pair = pending.pop();
+            if (branchLeafHash != null && pending.size() < branchBase) {
+                //the pair is past the branch compared against a leaf of the other tree
+                branchLeafHash = null;
+            }
+            AbstractNode<V> localNode = pair.get(0);
+            AbstractNode<V> otherNode = pair.get(1);
+            if (localNode == otherNode) {
+                //same instance, shared between trees
+                continue;
+            }
+            if (otherNode != null && localNode.hash().compareTo(otherNode.hash()) == 0) {
+                continue;
+            }
+            if (localNode instanceof LeafNode) {
+                if (branchLeafHash == null || localNode.hash().compareTo(branchLeafHash) != 0) {
+                    found++;
+                    if (!visitor.visit(LeafNode.<V, T>cast(localNode))) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            if (otherNode instanceof LeafNode) {
+                //the other tree is shallower here, its leaf is compared against the whole branch
+                branchLeafHash = otherNode.hash();
+                branchBase = pending.size();
+            }
+            //pushed right to left, so the leafs are found from left to right
+            List<AbstractNode<V>> localChildren = localNode.getChildren();
+            List<AbstractNode<V>> otherChildren = otherNode == null ? Collections.emptyList() : otherNode.getChildren();
+            for (int i = localChildren.size() - 1; i >= 0; i--) {
+                push(localChildren.get(i), i < otherChildren.size() ? otherChildren.get(i) : null);
+            }
+        }
+        if (pending.isEmpty()) {
+            branchLeafHash = null;
+        }
+        return found;
+    }
+    private void push(AbstractNode<V> localNode, AbstractNode<V> otherNode) {
+        if (localNode == null) {
+            //only the pivot tree is used to calculate diffs
+            return;
+        }
+        pending.push(Arrays.asList(localNode, otherNode));
+    }
+}
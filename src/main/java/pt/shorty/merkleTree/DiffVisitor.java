@@ -0,0 +1,19 @@
+package pt.shorty.merkleTree;
+
+/**
+ * Receives the differences of a streaming diff as they are found,
+ * see {@link MerkleTree#diff(MerkleTree, DiffVisitor, int)}
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+@FunctionalInterface
+public interface DiffVisitor<V extends Comparable<V>, T extends Hashable<V>> {
+
+    /**
+     * Called for each leaf found to be different
+     * @param leafNode - The different leaf, from the tree the diff was called on
+     * @return - True to keep going, false to stop the diff right after this leaf. A stopped diff
+     *           can be resumed from its {@link DiffCursor}
+     */
+    boolean visit(LeafNode<V, T> leafNode);
+}
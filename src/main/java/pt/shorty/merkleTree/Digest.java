@@ -0,0 +1,221 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable, fixed width hash value meant to be used as the hash type of the tree.
+ * Using raw byte[] as a hash requires a wrapper implementing {@link Comparable}, which then compares
+ * byte by byte. This type stores the digest bytes packed into big endian longs, so that equality and ordering
+ * are decided a word (8 bytes) at a time, and caches its hashCode, which makes it cheap to use in the
+ * hot paths of the tree (diffs, leaf equality, hash maps).
+ * Digests of up to {@link #MAX_LENGTH} bytes are supported, which covers md5 (16), sha-1 (20) and sha-256 (32).
+ * Ordering is the unsigned lexicographic order of the digest bytes, shorter digests sort first on ties.
+ */
+public final class Digest implements Comparable<Digest> {
+
+    /**
+     * The maximum supported digest length, in bytes
+     */
+    public static final int MAX_LENGTH = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    /**
+     * The length of the digest in bytes
+     */
+    private final int length;
+
+    /**
+     * Cached hash code, digests are immutable so this is computed once
+     */
+    private final int hashCode;
+
+    private Digest(long w0, long w1, long w2, long w3, int length) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.length = length;
+        this.hashCode = mix(w0, w1, w2, w3, length);
+    }
+
+    /**
+     * Creates a digest out of the supplied bytes. The array is copied, so it can be reused by the caller
+     * @param bytes - The digest bytes
+     * @return - The digest
+     */
+    public static Digest of(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes), bytes.length);
+    }
+
+    /**
+     * Reads a digest of the supplied length from the buffer, starting at its current position.
+     * The position of the buffer is advanced by length
+     * @param buffer - The buffer to read from
+     * @param length - The length of the digest, in bytes
+     * @return - The digest
+     */
+    public static Digest read(ByteBuffer buffer, int length) {
+        if (length <= 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid digest length " + length + ". Length must be between 1 and " + MAX_LENGTH);
+        }
+        if (buffer.remaining() < length) {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " bytes remaining, " + length + " required");
+        }
+        long[] words = new long[4];
+        int fullWords = length >>> 3;
+        for (int i = 0; i < fullWords; i++) {
+            //ByteBuffer defaults to big endian, so the unsigned word order matches the byte order
+            words[i] = buffer.getLong();
+        }
+        int tail = length & 7;
+        if (tail != 0) {
+            long word = 0;
+            for (int i = 0; i < tail; i++) {
+                word |= (buffer.get() & 0xFFL) << (56 - (i << 3));
+            }
+            words[fullWords] = word;
+        }
+        return new Digest(words[0], words[1], words[2], words[3], length);
+    }
+
+    /**
+     * Creates a digest out of its words, the bytes past length must be zero
+     * @param w0 - The first word
+     * @param w1 - The second word
+     * @param w2 - The third word
+     * @param w3 - The fourth word
+     * @param length - The length of the digest, in bytes
+     * @return - The digest
+     */
+    static Digest ofWords(long w0, long w1, long w2, long w3, int length) {
+        return new Digest(w0, w1, w2, w3, length);
+    }
+
+    /**
+     * Gets the length of this digest
+     * @return - The length in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Writes the bytes of this digest into the buffer, advancing its position by {@link #length()}
+     * @param buffer - The buffer to write into
+     */
+    public void writeTo(ByteBuffer buffer) {
+        int fullWords = length >>> 3;
+        for (int i = 0; i < fullWords; i++) {
+            buffer.putLong(word(i));
+        }
+        int tail = length & 7;
+        if (tail != 0) {
+            long word = word(fullWords);
+            for (int i = 0; i < tail; i++) {
+                buffer.put((byte) (word >>> (56 - (i << 3))));
+            }
+        }
+    }
+
+    /**
+     * Copies the bytes of this digest into the array
+     * @param destination - The destination array
+     * @param offset - The offset in the destination to start writing at
+     */
+    public void copyTo(byte[] destination, int offset) {
+        writeTo(ByteBuffer.wrap(destination, offset, length));
+    }
+
+    /**
+     * Returns the bytes of this digest as a new array
+     * @return - A copy of the digest bytes
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Gets the nth 8 byte word of this digest, zero padded
+     * @param index - The index of the word, from 0 to 3
+     * @return - The word
+     */
+    long word(int index) {
+        switch (index) {
+            case 0:
+                return w0;
+            case 1:
+                return w1;
+            case 2:
+                return w2;
+            case 3:
+                return w3;
+            default:
+                throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareTo(Digest o) {
+        if (this == o) {
+            return 0;
+        }
+        //first mismatching word decides, same as Arrays.compareUnsigned on the bytes
+        if (w0 != o.w0) {
+            return Long.compareUnsigned(w0, o.w0);
+        }
+        if (w1 != o.w1) {
+            return Long.compareUnsigned(w1, o.w1);
+        }
+        if (w2 != o.w2) {
+            return Long.compareUnsigned(w2, o.w2);
+        }
+        if (w3 != o.w3) {
+            return Long.compareUnsigned(w3, o.w3);
+        }
+        return Integer.compare(length, o.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Digest digest = (Digest) o;
+        return hashCode == digest.hashCode
+                && length == digest.length
+                && w0 == digest.w0
+                && w1 == digest.w1
+                && w2 == digest.w2
+                && w3 == digest.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length * 2);
+        for (byte b : toByteArray()) {
+            builder.append(Character.forDigit((b >>> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static int mix(long w0, long w1, long w2, long w3, int length) {
+        //the words of a good digest are already uniformly distributed, folding them is enough
+        long h = w0 ^ Long.rotateLeft(w1, 16) ^ Long.rotateLeft(w2, 32) ^ Long.rotateLeft(w3, 48);
+        return (int) (h ^ (h >>> 32)) * 31 + length;
+    }
+
+}
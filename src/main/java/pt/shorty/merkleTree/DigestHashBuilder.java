@@ -0,0 +1,148 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link HashBuilder} for {@link Digest} hashes backed by a {@link MessageDigest} algorithm.
+ * The parent hash is the digest of the concatenation of the child digests.
+ * A {@link MessageDigest} instance and a scratch buffer are kept per thread, so one builder
+ * can be shared by every node of a tree, and by several threads hashing at the same time.
+ */
+public class DigestHashBuilder implements HashBuilder<Digest> {
+
+    private static final byte LEAF_PREFIX = 0x00;
+
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final String algorithm;
+
+    private final ThreadLocal<MessageDigest> messageDigest;
+
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[Digest.MAX_LENGTH]);
+
+    /**
+     * Creates a new builder for the supplied algorithm
+     * @param algorithm - The name of the {@link MessageDigest} algorithm, for example md5 or sha-256.
+     *                  The algorithm output must not be longer than {@link Digest#MAX_LENGTH}
+     */
+    public DigestHashBuilder(String algorithm) {
+        this.algorithm = algorithm;
+        //fail fast on an unknown or too long algorithm, instead of on the first hash
+        int length = newMessageDigest(algorithm).getDigestLength();
+        if (length > Digest.MAX_LENGTH) {
+            throw new IllegalArgumentException("Algorithm " + algorithm + " produces digests of " + length
+                    + " bytes, max supported is " + Digest.MAX_LENGTH);
+        }
+        this.messageDigest = ThreadLocal.withInitial(() -> newMessageDigest(algorithm));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Digest hash(List<Digest> hashes) {
+        MessageDigest md = messageDigest.get();
+        byte[] bytes = scratch.get();
+        for (Digest hash : hashes) {
+            hash.copyTo(bytes, 0);
+            md.update(bytes, 0, hash.length());
+        }
+        return Digest.of(md.digest());
+    }
+
+    /**
+     * Gets a builder for {@link MerkleLog} hashes with the same algorithm, which prefixes leaf hashes with
+     * a 0x00 byte and node hashes with a 0x01 byte, as RFC 6962 does. The hash of a leaf is the digest of
+     * the prefix and of the hash of the leaf data
+     * @return - The log hash builder
+     */
+    public LogHashBuilder<Digest> forLog() {
+        return new LogHashBuilder<Digest>() {
+            @Override
+            public Digest hashLeaf(Digest hash) {
+                return DigestHashBuilder.this.hash(LEAF_PREFIX, Collections.singletonList(hash));
+            }
+
+            @Override
+            public Digest hash(List<Digest> hashes) {
+                return DigestHashBuilder.this.hash(NODE_PREFIX, hashes);
+            }
+        };
+    }
+
+    private Digest hash(byte prefix, List<Digest> hashes) {
+        MessageDigest md = messageDigest.get();
+        md.update(prefix);
+        return hash(hashes);
+    }
+
+    /**
+     * Digests raw data, usually to create the hash of a leaf
+     * @param data - The data to digest
+     * @return - The digest of the data
+     */
+    public Digest digest(byte[] data) {
+        return Digest.of(messageDigest.get().digest(data));
+    }
+
+    /**
+     * Digests the remaining bytes of the buffer, usually to create the hash of a leaf.
+     * The buffer position is advanced to its limit
+     * @param data - The data to digest
+     * @return - The digest of the data
+     */
+    public Digest digest(ByteBuffer data) {
+        MessageDigest md = messageDigest.get();
+        md.update(data);
+        return Digest.of(md.digest());
+    }
+
+    /**
+     * Digests the remaining bytes of the buffer straight into the output buffer, without creating a {@link Digest}.
+     * Hashing the concatenated child digests this way gives the same bytes as {@link #hash(List)}.
+     * The data buffer position is advanced to its limit, the output position by {@link #getDigestLength()}
+     * @param data - The data to digest
+     * @param output - The buffer to write the digest into
+     */
+    void digest(ByteBuffer data, ByteBuffer output) {
+        MessageDigest md = messageDigest.get();
+        byte[] bytes = scratch.get();
+        md.update(data);
+        try {
+            int length = md.digest(bytes, 0, bytes.length);
+            output.put(bytes, 0, length);
+        } catch (DigestException e) {
+            //the scratch buffer fits any supported algorithm, checked at construction
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the name of the algorithm used by this builder
+     * @return - The algorithm name
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Gets the length of the digests produced by this builder
+     * @return - The digest length in bytes
+     */
+    public int getDigestLength() {
+        return messageDigest.get().getDigestLength();
+    }
+
+    private static MessageDigest newMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, e);
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package pt.shorty.merkleTree;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A merkle snapshot of a directory hierarchy, where directories are the internal nodes and files the leafs.
+ * The hash of a file is the root hash of its {@link FileMerkleTreeBuilder} tree, the hash of a directory is built
+ * out of the names and hashes of its children, sorted by name, so the root hash changes if any file in the
+ * hierarchy is added, removed, renamed or changed.
+ * Each directory is a {@link Node} hashed with the {@link DigestHashBuilder} of the file tree builder. Its children
+ * are, for every entry sorted by name, a leaf holding the hash of the name followed by the node of the entry, a
+ * {@link LeafNode} holding the file hash for a file or the {@link Node} of a sub directory.
+ * Files are identified by their size and last modified time, a file is only read again if either changed.
+ * Directory hashes are cached by their nodes and only the ancestors of a changed file are rehashed.
+ * The snapshot can be saved to a file and loaded on a later run, after which {@link #refresh()} rehashes only
+ * what changed in between. {@link #update(Path)} rehashes a single path, meant to be fed by file change events,
+ * see {@link DirectorySnapshotWatcher}.
+ * Symbolic links and special files are ignored.
+ */
+public class DirectorySnapshot {
+
+    private static final int MAGIC = 0x4d4b5344;
+
+    private static final int VERSION = 1;
+
+    private static final byte DIRECTORY_TYPE = 'D';
+
+    private static final byte FILE_TYPE = 'F';
+
+    private final Path rootPath;
+
+    private final FileMerkleTreeBuilder fileTreeBuilder;
+
+    private final DigestHashBuilder hashBuilder;
+
+    private final DirectoryEntry rootEntry;
+
+    private DirectorySnapshot(Path rootPath, FileMerkleTreeBuilder fileTreeBuilder) {
+        this.rootPath = rootPath.toAbsolutePath().normalize();
+        this.fileTreeBuilder = fileTreeBuilder;
+        this.hashBuilder = fileTreeBuilder.getHashBuilder();
+        this.rootEntry = newDirectoryEntry("", null);
+    }
+
+    /**
+     * Creates a snapshot of a directory, hashing every file in it
+     * @param rootPath - The directory to snapshot
+     * @param fileTreeBuilder - Hashes the files of the directory
+     * @return - The snapshot
+     * @throws IOException - If the directory can't be read
+     */
+    public static DirectorySnapshot create(Path rootPath, FileMerkleTreeBuilder fileTreeBuilder) throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot(rootPath, fileTreeBuilder);
+        snapshot.refresh();
+        return snapshot;
+    }
+
+    /**
+     * Loads a snapshot previously saved with {@link #save(Path)}. Nothing is read from the directory itself,
+     * call {@link #refresh()} to bring the snapshot up-to-date, which only rehashes changed files
+     * @param rootPath - The directory of the snapshot
+     * @param snapshotFile - The file the snapshot was saved to
+     * @param fileTreeBuilder - Hashes the files of the directory, must use the same algorithm the snapshot was saved with
+     * @return - The snapshot
+     * @throws IOException - If the snapshot file can't be read or is not a valid snapshot
+     */
+    public static DirectorySnapshot load(Path rootPath, Path snapshotFile, FileMerkleTreeBuilder fileTreeBuilder) throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot(rootPath, fileTreeBuilder);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a directory snapshot file " + snapshotFile);
+            }
+            String algorithm = in.readUTF();
+            if (!algorithm.equalsIgnoreCase(snapshot.hashBuilder.getAlgorithm())) {
+                throw new IOException("Snapshot was saved with algorithm " + algorithm + " but "
+                        + snapshot.hashBuilder.getAlgorithm() + " was supplied");
+            }
+            int digestLength = in.readInt();
+            if (digestLength != snapshot.hashBuilder.getDigestLength()) {
+                throw new IOException("Invalid digest length " + digestLength + " in snapshot file " + snapshotFile
+                        + ". Length must be " + snapshot.hashBuilder.getDigestLength());
+            }
+            int entryCount = in.readInt();
+            if (entryCount < 0) {
+                throw new IOException("Invalid entry count " + entryCount + " in snapshot file " + snapshotFile);
+            }
+            byte[] digestBytes = new byte[digestLength];
+            for (int i = 0; i < entryCount; i++) {
+                byte type = in.readByte();
+                String relativePath = in.readUTF();
+                DirectoryEntry parent = snapshot.rootEntry;
+                String[] names = relativePath.split("/", -1);
+                for (String name : names) {
+                    if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                        throw new IOException("Invalid entry path " + relativePath + " in snapshot file " + snapshotFile);
+                    }
+                }
+                for (int j = 0; j < names.length - 1; j++) {
+                    //entries are saved in pre-order, so the parent directory must have been loaded already
+                    Entry ancestor = parent.children.get(names[j]);
+                    if (!(ancestor instanceof DirectoryEntry)) {
+                        throw new IOException("Invalid entry path " + relativePath + " in snapshot file " + snapshotFile
+                                + ". " + names[j] + " is not a directory loaded before it");
+                    }
+                    parent = (DirectoryEntry) ancestor;
+                }
+                String name = names[names.length - 1];
+                if (parent.children.containsKey(name)) {
+                    throw new IOException("Duplicate entry " + relativePath + " in snapshot file " + snapshotFile);
+                }
+                if (type == DIRECTORY_TYPE) {
+                    parent.children.put(name, snapshot.newDirectoryEntry(name, parent));
+                } else if (type == FILE_TYPE) {
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    in.readFully(digestBytes);
+                    parent.children.put(name, snapshot.newFileEntry(name, parent, size, modified, Digest.of(digestBytes)));
+                } else {
+                    throw new IOException("Invalid entry type " + type + " in snapshot file " + snapshotFile);
+                }
+            }
+        }
+        //the directory nodes are linked once everything is loaded, instead of once per entry
+        snapshot.linkAll(snapshot.rootEntry);
+        return snapshot;
+    }
+
+    /**
+     * Saves this snapshot, so that it can be loaded with {@link #load(Path, Path, FileMerkleTreeBuilder)}.
+     * The file is replaced atomically, a crash while saving leaves the previous snapshot intact
+     * @param snapshotFile - The file to save to
+     * @throws IOException - If the file can't be written
+     */
+    public synchronized void save(Path snapshotFile) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        collectEntries(rootEntry, entries);
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(hashBuilder.getAlgorithm());
+            out.writeInt(hashBuilder.getDigestLength());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                if (entry instanceof DirectoryEntry) {
+                    out.writeByte(DIRECTORY_TYPE);
+                    out.writeUTF(entry.relativePath());
+                } else {
+                    FileEntry fileEntry = (FileEntry) entry;
+                    out.writeByte(FILE_TYPE);
+                    out.writeUTF(fileEntry.relativePath());
+                    out.writeLong(fileEntry.size);
+                    out.writeLong(fileEntry.modified);
+                    out.write(fileEntry.hash().toByteArray());
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //the rename is only durable once the directory holding the file is
+        forceDirectory(snapshotFile.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Forces the entries of a directory (renames, new files) to disk, also used by {@link MerkleTreeJournal}
+     * @param directory - The directory
+     * @throws IOException - If the directory can't be forced
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            //some platforms (windows) can't open a directory, a rename is durable there once it returns
+        }
+    }
+
+    /**
+     * Walks the whole directory and brings the snapshot up-to-date. Only files whose size or last modified
+     * time changed are read, only the directories above them are rehashed
+     * @return - The relative paths of the files and directories that were added, changed or removed
+     * @throws IOException - If the directory can't be read
+     */
+    public synchronized Set<Path> refresh() throws IOException {
+        Set<Path> changed = new TreeSet<>();
+        syncDirectory(rootEntry, rootPath, changed);
+        return changed;
+    }
+
+    /**
+     * Brings a single path of the snapshot up-to-date, along with the hashes of the directories above it.
+     * A file is rehashed if its size or last modified time changed, a path that no longer exists is removed and
+     * a new directory is walked. The contents of an already known directory are not looked at
+     * @param path - The path that changed, must be inside the snapshot directory
+     * @return - True if the snapshot changed
+     * @throws IOException - If the path can't be read
+     */
+    public synchronized boolean update(Path path) throws IOException {
+        Path relativePath = relativize(path);
+        if (relativePath.toString().isEmpty()) {
+            return !refresh().isEmpty();
+        }
+        //find the deepest known directory on the way to the path, anything below it is new
+        DirectoryEntry parent = rootEntry;
+        int depth = 0;
+        while (depth < relativePath.getNameCount() - 1) {
+            Entry child = parent.children.get(relativePath.getName(depth).toString());
+            if (!(child instanceof DirectoryEntry)) {
+                break;
+            }
+            parent = (DirectoryEntry) child;
+            depth++;
+        }
+        Path childPath = rootPath.resolve(relativePath.subpath(0, depth + 1));
+        Set<Path> changed = new TreeSet<>();
+        if (syncChild(parent, childPath, changed, false)) {
+            parent.link();
+        }
+        return !changed.isEmpty();
+    }
+
+    /**
+     * Gets the hash of the snapshot directory
+     * @return - The root hash
+     */
+    public synchronized Digest getRootHash() {
+        return rootEntry.hash();
+    }
+
+    /**
+     * Gets the hash of a file or directory of the snapshot
+     * @param path - The path, either absolute or relative to the snapshot directory
+     * @return - The hash, or null if the path is not part of the snapshot
+     */
+    public synchronized Digest getHash(Path path) {
+        Entry entry = rootEntry;
+        for (Path name : relativize(path)) {
+            if (name.toString().isEmpty()) {
+                continue;
+            }
+            if (!(entry instanceof DirectoryEntry)) {
+                return null;
+            }
+            entry = ((DirectoryEntry) entry).children.get(name.toString());
+            if (entry == null) {
+                return null;
+            }
+        }
+        return entry.hash();
+    }
+
+    /**
+     * Gets the directory of this snapshot
+     * @return - The absolute directory path
+     */
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    private Path relativize(Path path) {
+        Path absolutePath = rootPath.resolve(path).normalize();
+        if (!absolutePath.startsWith(rootPath)) {
+            throw new IllegalArgumentException("Path " + path + " is not inside " + rootPath);
+        }
+        return rootPath.relativize(absolutePath);
+    }
+
+    private void syncDirectory(DirectoryEntry directory, Path directoryPath, Set<Path> changed) throws IOException {
+        Set<String> names = new TreeSet<>();
+        boolean childrenChanged = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directoryPath)) {
+            for (Path childPath : stream) {
+                names.add(childPath.getFileName().toString());
+                childrenChanged |= syncChild(directory, childPath, changed, true);
+            }
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = directory.children.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (!names.contains(entry.name)) {
+                iterator.remove();
+                childrenChanged = true;
+                changed.add(Paths.get(entry.relativePath()));
+            }
+        }
+        if (childrenChanged) {
+            directory.link();
+        }
+    }
+
+    /**
+     * Syncs a single child of a directory with the file system. The node of the parent is not relinked, so
+     * that a directory with many changed children is only relinked once
+     * @param recurse - If known child directories should be synced as well
+     * @return - True if an entry of the parent was added, replaced or removed, and the parent must be relinked
+     */
+    private boolean syncChild(DirectoryEntry parent, Path childPath, Set<Path> changed, boolean recurse) throws IOException {
+        String name = childPath.getFileName().toString();
+        Entry entry = parent.children.get(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(childPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !(attributes.isDirectory() || attributes.isRegularFile())) {
+            if (entry != null) {
+                parent.children.remove(name);
+                changed.add(Paths.get(entry.relativePath()));
+                return true;
+            }
+            return false;
+        }
+        if (attributes.isDirectory()) {
+            if (entry instanceof DirectoryEntry) {
+                if (recurse) {
+                    //relinks the known directory itself, its node is already a child of the parent node
+                    syncDirectory((DirectoryEntry) entry, childPath, changed);
+                }
+                return false;
+            }
+            DirectoryEntry directoryEntry = newDirectoryEntry(name, parent);
+            parent.children.put(name, directoryEntry);
+            changed.add(Paths.get(directoryEntry.relativePath()));
+            syncDirectory(directoryEntry, childPath, changed);
+            return true;
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (entry instanceof FileEntry
+                && ((FileEntry) entry).size == size
+                && ((FileEntry) entry).modified == modified) {
+            return false;
+        }
+        FileEntry fileEntry = newFileEntry(name, parent, size, modified, hashFile(childPath));
+        parent.children.put(name, fileEntry);
+        changed.add(Paths.get(fileEntry.relativePath()));
+        return true;
+    }
+
+    private Digest hashFile(Path file) throws IOException {
+        Digest hash = fileTreeBuilder.build(file).getRootHash();
+        if (hash == null) {
+            //empty file, the tree has no nodes
+            return hashBuilder.digest(new byte[0]);
+        }
+        return hash;
+    }
+
+    private DirectoryEntry newDirectoryEntry(String name, DirectoryEntry parent) {
+        //directories get a trailing / so a file and a directory with the same content don't match
+        return new DirectoryEntry(name, parent, hashName(name + "/"), hashBuilder);
+    }
+
+    private FileEntry newFileEntry(String name, DirectoryEntry parent, long size, long modified, Digest hash) {
+        return new FileEntry(name, parent, hashName(name), size, modified, hash);
+    }
+
+    private Digest hashName(String name) {
+        return hashBuilder.digest(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void linkAll(DirectoryEntry directory) {
+        for (Entry entry : directory.children.values()) {
+            if (entry instanceof DirectoryEntry) {
+                linkAll((DirectoryEntry) entry);
+            }
+        }
+        directory.link();
+    }
+
+    private void collectEntries(DirectoryEntry directory, List<Entry> entries) {
+        //pre-order, so a directory is always loaded before its children
+        for (Entry entry : directory.children.values()) {
+            entries.add(entry);
+            if (entry instanceof DirectoryEntry) {
+                collectEntries((DirectoryEntry) entry, entries);
+            }
+        }
+    }
+
+    /**
+     * A file or directory of the snapshot
+     */
+    private abstract static class Entry {
+
+        final String name;
+
+        final DirectoryEntry parent;
+
+        /**
+         * Holds the hash of the name, which the parent directory hashes right before the node of this entry
+         */
+        final LeafNode<Digest, Hashable<Digest>> nameLeaf;
+
+        Entry(String name, DirectoryEntry parent, Digest nameHash) {
+            this.name = name;
+            this.parent = parent;
+            this.nameLeaf = LeafNode.ofHash(nameHash);
+        }
+
+        /**
+         * Gets the node of this entry in the tree of the snapshot
+         */
+        abstract AbstractNode<Digest> node();
+
+        Digest hash() {
+            return node().hash();
+        }
+
+        /**
+         * Gets the path of this entry relative to the snapshot directory, using / as separator
+         */
+        String relativePath() {
+            if (parent == null || parent.parent == null) {
+                return name;
+            }
+            return parent.relativePath() + "/" + name;
+        }
+    }
+
+    private static final class FileEntry extends Entry {
+
+        final long size;
+
+        final long modified;
+
+        /**
+         * Holds the root hash of the file tree, a changed file gets a new entry
+         */
+        final LeafNode<Digest, Hashable<Digest>> leaf;
+
+        FileEntry(String name, DirectoryEntry parent, Digest nameHash, long size, long modified, Digest hash) {
+            super(name, parent, nameHash);
+            this.size = size;
+            this.modified = modified;
+            this.leaf = LeafNode.ofHash(hash);
+        }
+
+        @Override
+        AbstractNode<Digest> node() {
+            return leaf;
+        }
+    }
+
+    private static final class DirectoryEntry extends Entry {
+
+        /**
+         * Sorted by name, so the hash does not depend on the order the file system lists the children in
+         */
+        final TreeMap<String, Entry> children = new TreeMap<>();
+
+        /**
+         * Caches the hash of the directory. Directories are not balanced, so they are all put at level 1
+         */
+        final Node<Digest> node;
+
+        DirectoryEntry(String name, DirectoryEntry parent, Digest nameHash, HashBuilder<Digest> hashBuilder) {
+            super(name, parent, nameHash);
+            this.node = new Node<>(1, hashBuilder);
+        }
+
+        @Override
+        AbstractNode<Digest> node() {
+            return node;
+        }
+
+        /**
+         * Rebuilds the children of the node out of the entries, after entries were added, replaced or removed.
+         * The hashes of this directory and of the directories above it are cleared
+         */
+        void link() {
+            List<AbstractNode<Digest>> nodes = new ArrayList<>(children.size() * 2);
+            for (Entry child : children.values()) {
+                nodes.add(child.nameLeaf);
+                nodes.add(child.node());
+            }
+            node.setChildren(nodes);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package pt.shorty.merkleTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps a {@link DirectorySnapshot} up-to-date with the file system using a {@link WatchService}.
+ * Every directory of the snapshot is registered and each event rehashes only the path it refers to
+ * (see {@link DirectorySnapshot#update(Path)}). If the watch service drops events (overflow), the whole
+ * snapshot is refreshed, which still only rehashes the files that changed.
+ * Events are handled by a daemon thread until the watcher is closed.
+ */
+public class DirectorySnapshotWatcher implements Closeable {
+
+    private final DirectorySnapshot snapshot;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    private final Thread worker;
+
+    /**
+     * The last error found while handling events, errors don't stop the watcher.
+     * Unexpected runtime errors are recorded wrapped in an IOException
+     */
+    private volatile IOException lastError;
+
+    /**
+     * Creates a new watcher and starts watching the snapshot directory
+     * @param snapshot - The snapshot to keep up-to-date
+     * @throws IOException - If the directories can't be registered
+     */
+    public DirectorySnapshotWatcher(DirectorySnapshot snapshot) throws IOException {
+        this.snapshot = snapshot;
+        this.watchService = snapshot.getRootPath().getFileSystem().newWatchService();
+        registerAll(snapshot.getRootPath());
+        //anything that changed before the directories were registered is picked up here
+        snapshot.refresh();
+        this.worker = new Thread(this::processEvents, "merkle-directory-watcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Gets the last error found while handling events
+     * @return - The error or null if there was none
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stops watching the directory
+     * @throws IOException - If the watch service can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        worker.interrupt();
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            try {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        snapshot.refresh();
+                        registerAll(snapshot.getRootPath());
+                        continue;
+                    }
+                    if (directory == null) {
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE
+                            && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        //register before walking it, so files created meanwhile are not missed
+                        registerAll(path);
+                    }
+                    snapshot.update(path);
+                }
+            } catch (IOException e) {
+                lastError = e;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                //an unexpected error must not kill the watcher thread without a trace
+                lastError = new IOException("Failed to handle the events of " + directory, e);
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
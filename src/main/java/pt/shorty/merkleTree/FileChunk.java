@@ -0,0 +1,65 @@
+package pt.shorty.merkleTree;
+
+/**
+ * A chunk of a file, used as the data of the leafs of a tree built by {@link FileMerkleTreeBuilder}.
+ * A chunk only keeps its position in the file and the digest of its content, not the content itself,
+ * so that a diff between two file trees tells which byte ranges of the file changed.
+ */
+public class FileChunk implements Hashable<Digest> {
+
+    /**
+     * The offset of the first byte of this chunk in the file
+     */
+    private final long offset;
+
+    /**
+     * The number of bytes in this chunk
+     */
+    private final int length;
+
+    /**
+     * The digest of the content of this chunk
+     */
+    private final Digest digest;
+
+    /**
+     * Creates a new chunk
+     * @param offset - The offset of the chunk in the file
+     * @param length - The length of the chunk
+     * @param digest - The digest of the chunk content
+     */
+    public FileChunk(long offset, int length, Digest digest) {
+        this.offset = offset;
+        this.length = length;
+        this.digest = digest;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Digest hash() {
+        return digest;
+    }
+
+    /**
+     * Gets the offset of the first byte of this chunk in the file
+     * @return - The offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes in this chunk
+     * @return - The length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "FileChunk{offset=" + offset + ", length=" + length + ", digest=" + digest + '}';
+    }
+}
@@ -0,0 +1,146 @@
+package pt.shorty.merkleTree;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Builds merkle trees out of files. The file is split in chunks by a {@link Chunker}, each chunk becomes a leaf
+ * ({@link FileChunk}) holding its offset and the digest of its content.
+ * The file is memory mapped a region at a time and the chunks of a region are digested in parallel,
+ * so the build is bound by the disk and by the number of cores, not by a single digest stream.
+ * Diffing the trees of two versions of a file gives the byte ranges that changed.
+ */
+public class FileMerkleTreeBuilder {
+
+    /**
+     * The max size of a single mapped region of the file. Big files are mapped and digested
+     * one region at a time, so the address space used stays bounded
+     */
+    private static final long MAX_REGION_SIZE = 1L << 30;
+
+    private final DigestHashBuilder hashBuilder;
+
+    private final Chunker chunker;
+
+    /**
+     * Creates a new builder that splits files in fixed size chunks
+     * @param algorithm - The digest algorithm used both for the chunks and for the internal nodes
+     * @param chunkSize - The size in bytes of each chunk, the last chunk of a file may be smaller
+     */
+    public FileMerkleTreeBuilder(String algorithm, int chunkSize) {
+        this(algorithm, new FixedSizeChunker(chunkSize));
+    }
+
+    /**
+     * Creates a new builder
+     * @param algorithm - The digest algorithm used both for the chunks and for the internal nodes
+     * @param chunker - Decides the boundaries of the chunks
+     */
+    public FileMerkleTreeBuilder(String algorithm, Chunker chunker) {
+        if (chunker.getMaxChunkLength() <= 0 || chunker.getMaxChunkLength() > MAX_REGION_SIZE) {
+            throw new IllegalArgumentException("Invalid max chunk length " + chunker.getMaxChunkLength()
+                    + ". Max chunk length must be between 1 and " + MAX_REGION_SIZE);
+        }
+        this.hashBuilder = new DigestHashBuilder(algorithm);
+        this.chunker = chunker;
+    }
+
+    /**
+     * Builds the tree of the supplied file. The file is expected not to change while it's being read
+     * @param file - The file to build the tree of
+     * @return - The tree, an empty file results in a tree with no nodes
+     * @throws IOException - If the file can't be read
+     */
+    public MerkleTree<Digest, FileChunk> build(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<FileChunk> chunks = new ArrayList<>();
+            long regionStart = 0;
+            while (regionStart < size) {
+                long regionLength = Math.min(MAX_REGION_SIZE, size - regionStart);
+                boolean endOfInput = regionStart + regionLength == size;
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionLength);
+                //the region is at least as big as the max chunk, so at least one chunk always ends in it.
+                //a chunk that does not end in the region is left for the next one, which starts where it starts
+                regionStart += digestRegion(region, regionStart, endOfInput, chunks);
+            }
+            return new MerkleTree<>(chunks, hashBuilder);
+        }
+    }
+
+    /**
+     * Gets the hash builder used by the trees built by this builder, needed to
+     * build comparable trees out of chunks obtained elsewhere
+     * @return - The hash builder
+     */
+    public DigestHashBuilder getHashBuilder() {
+        return hashBuilder;
+    }
+
+    /**
+     * Gets the chunks of a file tree whose content is not present anywhere in the reference tree.
+     * Unlike {@link MerkleTree#diff(MerkleTree)}, chunks are matched by digest and not by position,
+     * so chunks that only moved (because bytes were inserted or removed before them) are not returned.
+     * With a {@link ContentDefinedChunker} this is the minimal set of chunks to transfer to turn the
+     * reference into the file.
+     * @param tree - The tree of the file
+     * @param reference - The tree of the reference version of the file
+     * @return - The chunks of tree missing from the reference, ordered by offset
+     */
+    public static List<FileChunk> chunksMissingFrom(MerkleTree<Digest, FileChunk> tree,
+                                                    MerkleTree<Digest, FileChunk> reference) {
+        if (Objects.equals(tree.getRootHash(), reference.getRootHash())) {
+            return new ArrayList<>();
+        }
+        Set<Digest> referenceDigests = new HashSet<>();
+        for (AbstractNode<Digest> node : reference.getLeafNodes()) {
+            referenceDigests.add(node.hash());
+        }
+        List<FileChunk> missing = new ArrayList<>();
+        for (AbstractNode<Digest> node : tree.getLeafNodes()) {
+            if (!referenceDigests.contains(node.hash())) {
+                missing.add(LeafNode.<Digest, FileChunk>cast(node).getData());
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Splits the region in chunks and digests them in parallel
+     * @return - The number of bytes of the region covered by the chunks found
+     */
+    private long digestRegion(MappedByteBuffer region, long regionStart, boolean endOfInput, List<FileChunk> chunks) {
+        //boundaries may depend on the content, so finding them is sequential, only the digests are parallel
+        List<int[]> boundaries = new ArrayList<>();
+        int position = 0;
+        while (position < region.limit()) {
+            int length = chunker.nextChunkLength(region.slice(position, region.limit() - position), endOfInput);
+            if (length == -1) {
+                break;
+            }
+            if (length <= 0 || length > region.limit() - position) {
+                throw new IllegalStateException("Chunker returned an invalid chunk length " + length);
+            }
+            boundaries.add(new int[]{position, length});
+            position += length;
+        }
+        if (position == 0) {
+            throw new IllegalStateException("Chunker did not find a chunk in " + region.limit() + " bytes");
+        }
+        FileChunk[] regionChunks = new FileChunk[boundaries.size()];
+        IntStream.range(0, regionChunks.length).parallel().forEach(i -> {
+            int start = boundaries.get(i)[0];
+            int length = boundaries.get(i)[1];
+            //slice does not touch the position of the region, so it's safe to call concurrently
+            Digest digest = hashBuilder.digest(region.slice(start, length));
+            regionChunks[i] = new FileChunk(regionStart + start, length, digest);
+        });
+        chunks.addAll(Arrays.asList(regionChunks));
+        return position;
+    }
+}
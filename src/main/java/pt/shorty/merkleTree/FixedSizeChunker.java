@@ -0,0 +1,43 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the input in chunks of the same size, only the last chunk may be smaller.
+ * Cheap, since the content is never looked at, but inserting or removing a single byte
+ * shifts every chunk that follows it. See {@link ContentDefinedChunker} for a shift resistant alternative.
+ */
+public class FixedSizeChunker implements Chunker {
+
+    private final int chunkSize;
+
+    /**
+     * Creates a new chunker
+     * @param chunkSize - The size in bytes of each chunk
+     */
+    public FixedSizeChunker(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize + ". Chunk size must be greater than 0");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int nextChunkLength(ByteBuffer data, boolean endOfInput) {
+        if (data.remaining() >= chunkSize) {
+            return chunkSize;
+        }
+        return endOfInput ? data.remaining() : -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxChunkLength() {
+        return chunkSize;
+    }
+}
@@ -2,7 +2,10 @@ package pt.shorty.merkleTree;
 
 
 /***
- * A functional interface meant to be implemented by any class that can be hashed
+ * A functional interface meant to be implemented by any class that can be hashed.
+ * A {@link MerkleTree} caches the hashes of its internal nodes, so the hash of data held by a tree must not change
+ * behind the tree's back: mutating the data in place leaves {@link MerkleTree#getRootHash()} stale. Report the
+ * change by passing the data again through {@link MerkleTree#applyBatch(java.util.Map)}, which rehashes its path
  * @param <V> - The return type of the hashing function. Usually this will be byte[]
  */
 @FunctionalInterface
@@ -0,0 +1,460 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * An invertible bloom lookup table (IBLT) of digests, used to reconcile the leaf hashes of two trees that differ
+ * by a handful of leafs in a single message.
+ * Each side adds its leaf hashes to a table with the same number of cells, one side sends its table
+ * (see {@link #writeTo(ByteBuffer)}), the other subtracts it from its own and decodes the result, which yields the
+ * hashes only the local tree has and the hashes only the remote tree has. Hashes both trees have cancel out,
+ * so the table only has to be sized for the number of differences, not for the size of the trees.
+ * Tree descent instead needs one round trip per level, which is cheaper only when the differences are many.
+ * Decoding fails when there are more differences than the table was sized for, in which case the trees have to
+ * be descended instead, see {@link #reconcile(MerkleTree, MerkleTree, int)}.
+ * Each digest is added to 3 cells, one in each third of the table. Each cell holds the count of digests
+ * added to it, the xor of those digests and the xor of a checksum of each, the checksum tells apart a cell
+ * holding a single digest from one holding several.
+ * Leaf hashes are reconciled as sets: a hash is a difference only if the other side doesn't have it at all,
+ * however many times and wherever it appears on either side. {@link #of(MerkleTree, int)} adds each distinct
+ * leaf hash once, a table filled through {@link #add(Digest)} must not be given the same digest twice, since
+ * a digest added twice cancels itself out of the cell sums and the table can't be decoded.
+ */
+public class InvertibleBloomLookupTable {
+
+    /**
+     * The number of cells each digest is added to
+     */
+    private static final int HASH_COUNT = 3;
+
+    /**
+     * Cells per expected difference. With 3 cells per digest, big tables decode with high probability
+     * from about 1.23 cells per difference on, 2 leaves room for a few more differences than expected
+     */
+    private static final int CELLS_PER_DIFFERENCE = 2;
+
+    /**
+     * Cells added on top of the cells per difference. In small tables a couple of digests landing in the
+     * same 3 cells is likely enough to matter, these keep decoding failures around 1% for any number of differences
+     */
+    private static final int EXTRA_CELLS = 48;
+
+    private static final long CHECKSUM_SEED = 0x5DEECE66DL;
+
+    /**
+     * Max number of cells of a table, enough for millions of differences. Also bounds what
+     * {@link #read(ByteBuffer)} allocates for a table received from a peer
+     */
+    public static final int MAX_CELL_COUNT = 1 << 24;
+
+    private final int digestLength;
+
+    /**
+     * Number of cells in each third of the table
+     */
+    private final int partitionSize;
+
+    private final int[] counts;
+
+    /**
+     * The xor of the digests added to each cell, 4 words per cell
+     */
+    private final long[] keySums;
+
+    private final long[] checksums;
+
+    /**
+     * Creates a new, empty table
+     * @param cellCount - The number of cells, rounded up to a multiple of 3. Must be between 3 and {@link #MAX_CELL_COUNT}
+     * @param digestLength - The length of the digests to add, in bytes
+     */
+    public InvertibleBloomLookupTable(int cellCount, int digestLength) {
+        if (cellCount < HASH_COUNT || cellCount > MAX_CELL_COUNT) {
+            throw new IllegalArgumentException("Invalid cell count " + cellCount + ". Cell count must be between "
+                    + HASH_COUNT + " and " + MAX_CELL_COUNT);
+        }
+        if (digestLength <= 0 || digestLength > Digest.MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid digest length " + digestLength + ". Length must be between 1 and " + Digest.MAX_LENGTH);
+        }
+        this.digestLength = digestLength;
+        this.partitionSize = (cellCount + HASH_COUNT - 1) / HASH_COUNT;
+        int cells = partitionSize * HASH_COUNT;
+        this.counts = new int[cells];
+        this.keySums = new long[cells * 4];
+        this.checksums = new long[cells];
+    }
+
+    /**
+     * Creates a table sized to decode up to the supplied number of differences, with the distinct leaf hashes of the tree.
+     * The digest length is the length of the leaf hashes. A table for an empty tree has no length to take, create
+     * it with {@link #InvertibleBloomLookupTable(int, int)} and {@link #cellsFor(int)} instead
+     * @param tree - The tree to add the leaf hashes of, must have leafs
+     * @param expectedDifferences - The max number of differences expected with the trees this one is reconciled with
+     * @return - The table
+     */
+    public static InvertibleBloomLookupTable of(MerkleTree<Digest, ?> tree, int expectedDifferences) {
+        if (tree.getLeafCount() == 0) {
+            throw new IllegalArgumentException("Invalid tree. Tree must have leafs to take the digest length from");
+        }
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(cellsFor(expectedDifferences), tree.getLeafHash(0).length());
+        for (Digest hash : leafHashes(tree)) {
+            table.add(hash);
+        }
+        return table;
+    }
+
+    /**
+     * Gets the number of cells needed to decode up to the supplied number of differences
+     * @param expectedDifferences - The max number of differences
+     * @return - The number of cells
+     */
+    public static int cellsFor(int expectedDifferences) {
+        int maxDifferences = (MAX_CELL_COUNT - EXTRA_CELLS) / CELLS_PER_DIFFERENCE;
+        if (expectedDifferences < 0 || expectedDifferences > maxDifferences) {
+            throw new IllegalArgumentException("Invalid expected differences " + expectedDifferences
+                    + ". Expected differences must be between 0 and " + maxDifferences);
+        }
+        return expectedDifferences * CELLS_PER_DIFFERENCE + EXTRA_CELLS;
+    }
+
+    /**
+     * Reconciles the leaf hashes of two trees, as sets. Both trees are added to a table sized for the expected
+     * differences, and if the difference of the tables can't be decoded, both trees are descended instead with
+     * {@link MerkleTree#symmetricDiff(MerkleTree)}, which only visits the subtrees that differ.
+     * The descent compares leafs by position, so a hash at a position that differs may still be held by the other
+     * tree at a position where both agree. Those hashes are the only ones left in the difference of the tables once
+     * the hashes found by the descent are taken out of it, so they're decoded from there and dropped. Only when
+     * there are too many of them to decode are the leaf hashes compared in full.
+     * Both paths have the same set semantics, so the result is the same either way
+     * @param localTree - The local tree
+     * @param remoteTree - The remote tree
+     * @param expectedDifferences - The max number of differences expected
+     * @return - The hashes only in the local tree and the hashes only in the remote tree
+     */
+    public static <T extends Hashable<Digest>> Difference reconcile(MerkleTree<Digest, T> localTree, MerkleTree<Digest, T> remoteTree,
+                                                                    int expectedDifferences) {
+        InvertibleBloomLookupTable tableDifference = null;
+        if (localTree.getLeafCount() > 0 && remoteTree.getLeafCount() > 0) {
+            InvertibleBloomLookupTable localTable = of(localTree, expectedDifferences);
+            InvertibleBloomLookupTable remoteTable = of(remoteTree, expectedDifferences);
+            tableDifference = localTable.subtract(remoteTable);
+            Difference difference = tableDifference.decode();
+            if (difference != null) {
+                return difference;
+            }
+        }
+        SymmetricDiff<Digest, T> diff = localTree.symmetricDiff(remoteTree);
+        Set<Digest> localHashes = new LinkedHashSet<>();
+        Set<Digest> remoteHashes = new LinkedHashSet<>();
+        for (LeafNode<Digest, T> leaf : diff.getOnlyInLeft()) {
+            localHashes.add(leaf.hash());
+        }
+        for (LeafNode<Digest, T> leaf : diff.getOnlyInRight()) {
+            remoteHashes.add(leaf.hash());
+        }
+        for (SymmetricDiff.Change<Digest, T> change : diff.getChanged()) {
+            localHashes.add(change.getLeft().hash());
+            remoteHashes.add(change.getRight().hash());
+        }
+        Set<Digest> onlyLocal = difference(localHashes, remoteHashes);
+        Set<Digest> onlyRemote = difference(remoteHashes, localHashes);
+        if (tableDifference != null) {
+            //what's left are the hashes wrongly found only in one tree, with the sign of the other tree
+            for (Digest hash : onlyLocal) {
+                tableDifference.remove(hash);
+            }
+            for (Digest hash : onlyRemote) {
+                tableDifference.add(hash);
+            }
+            Difference wronglyFound = tableDifference.decode();
+            if (wronglyFound == null) {
+                Set<Digest> localLeafHashes = leafHashes(localTree);
+                Set<Digest> remoteLeafHashes = leafHashes(remoteTree);
+                return new Difference(new ArrayList<>(difference(localLeafHashes, remoteLeafHashes)),
+                        new ArrayList<>(difference(remoteLeafHashes, localLeafHashes)));
+            }
+            onlyLocal.removeAll(wronglyFound.getOnlyRemote());
+            onlyRemote.removeAll(wronglyFound.getOnlyLocal());
+        }
+        return new Difference(new ArrayList<>(onlyLocal), new ArrayList<>(onlyRemote));
+    }
+
+    /**
+     * Adds a digest to this table
+     * @param digest - The digest, must be of the table digest length
+     */
+    public void add(Digest digest) {
+        toggle(digest, 1);
+    }
+
+    /**
+     * Removes a digest from this table. The digest doesn't have to be in the table, removing
+     * a digest that was never added makes it decode as a digest only in the other side
+     * @param digest - The digest, must be of the table digest length
+     */
+    public void remove(Digest digest) {
+        toggle(digest, -1);
+    }
+
+    /**
+     * Subtracts the supplied table from this one, cell by cell. Digests added to both tables cancel out
+     * @param other - The table to subtract, must have the same number of cells and digest length
+     * @return - A new table, this one is not changed
+     */
+    public InvertibleBloomLookupTable subtract(InvertibleBloomLookupTable other) {
+        if (other.counts.length != counts.length || other.digestLength != digestLength) {
+            throw new IllegalArgumentException("Invalid table of " + other.counts.length + " cells and digest length " + other.digestLength
+                    + ". Table must have " + counts.length + " cells and digest length " + digestLength);
+        }
+        InvertibleBloomLookupTable result = new InvertibleBloomLookupTable(counts.length, digestLength);
+        for (int cell = 0; cell < counts.length; cell++) {
+            result.counts[cell] = counts[cell] - other.counts[cell];
+            result.checksums[cell] = checksums[cell] ^ other.checksums[cell];
+        }
+        for (int i = 0; i < keySums.length; i++) {
+            result.keySums[i] = keySums[i] ^ other.keySums[i];
+        }
+        return result;
+    }
+
+    /**
+     * Decodes this table, usually the result of {@link #subtract(InvertibleBloomLookupTable)}.
+     * Digests with a positive count are in this side only, digests with a negative count in the other side only
+     * @return - The decoded digests, or null if there are too many digests in the table to decode them
+     */
+    public Difference decode() {
+        //decoding empties the table, so it works on a copy
+        InvertibleBloomLookupTable table = subtract(new InvertibleBloomLookupTable(counts.length, digestLength));
+        List<Digest> onlyLocal = new ArrayList<>();
+        List<Digest> onlyRemote = new ArrayList<>();
+        Deque<Integer> pureCells = new ArrayDeque<>();
+        for (int cell = 0; cell < counts.length; cell++) {
+            if (table.isPure(cell)) {
+                pureCells.push(cell);
+            }
+        }
+        while (!pureCells.isEmpty()) {
+            int cell = pureCells.pop();
+            //an earlier removal may have changed the cell since it was queued
+            if (!table.isPure(cell)) {
+                continue;
+            }
+            Digest digest = table.keyOf(cell);
+            if (table.counts[cell] > 0) {
+                onlyLocal.add(digest);
+            } else {
+                onlyRemote.add(digest);
+            }
+            int count = table.counts[cell];
+            table.toggle(digest, -count);
+            for (int partition = 0; partition < HASH_COUNT; partition++) {
+                int other = table.cellOf(digest, partition);
+                if (table.isPure(other)) {
+                    pureCells.push(other);
+                }
+            }
+        }
+        for (int cell = 0; cell < counts.length; cell++) {
+            if (table.counts[cell] != 0 || table.checksums[cell] != 0) {
+                return null;
+            }
+        }
+        for (long keySum : table.keySums) {
+            if (keySum != 0) {
+                return null;
+            }
+        }
+        return new Difference(onlyLocal, onlyRemote);
+    }
+
+    /**
+     * Gets the number of cells of this table
+     * @return - The number of cells
+     */
+    public int getCellCount() {
+        return counts.length;
+    }
+
+    /**
+     * Gets the length of the digests of this table
+     * @return - The length in bytes
+     */
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    /**
+     * Gets the number of bytes {@link #writeTo(ByteBuffer)} writes
+     * @return - The size in bytes
+     */
+    public int getSerializedSize() {
+        return 8 + counts.length * (4 + digestLength + 8);
+    }
+
+    /**
+     * Writes this table into the buffer, advancing its position by {@link #getSerializedSize()}
+     * @param buffer - The buffer to write into
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(counts.length);
+        buffer.putInt(digestLength);
+        for (int cell = 0; cell < counts.length; cell++) {
+            buffer.putInt(counts[cell]);
+            keyOf(cell).writeTo(buffer);
+            buffer.putLong(checksums[cell]);
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(ByteBuffer)}, starting at the current position of the buffer
+     * @param buffer - The buffer to read from
+     * @return - The table
+     */
+    public static InvertibleBloomLookupTable read(ByteBuffer buffer) {
+        if (buffer.remaining() < 8) {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " bytes remaining, 8 required");
+        }
+        int cellCount = buffer.getInt();
+        int digestLength = buffer.getInt();
+        //the header comes from a peer, check it against the buffer before allocating anything
+        if (cellCount < HASH_COUNT || cellCount > MAX_CELL_COUNT || cellCount % HASH_COUNT != 0) {
+            throw new IllegalArgumentException("Invalid cell count " + cellCount + ". Cell count must be a multiple of "
+                    + HASH_COUNT + " between " + HASH_COUNT + " and " + MAX_CELL_COUNT);
+        }
+        if (digestLength <= 0 || digestLength > Digest.MAX_LENGTH) {
+            throw new IllegalArgumentException("Invalid digest length " + digestLength + ". Length must be between 1 and " + Digest.MAX_LENGTH);
+        }
+        long cellsSize = (long) cellCount * (4 + digestLength + 8);
+        if (buffer.remaining() < cellsSize) {
+            throw new IllegalArgumentException("Buffer has " + buffer.remaining() + " bytes remaining, " + cellsSize + " required");
+        }
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(cellCount, digestLength);
+        for (int cell = 0; cell < cellCount; cell++) {
+            table.counts[cell] = buffer.getInt();
+            Digest keySum = Digest.read(buffer, digestLength);
+            for (int word = 0; word < 4; word++) {
+                table.keySums[cell * 4 + word] = keySum.word(word);
+            }
+            table.checksums[cell] = buffer.getLong();
+        }
+        return table;
+    }
+
+    private void toggle(Digest digest, int count) {
+        if (digest.length() != digestLength) {
+            throw new IllegalArgumentException("Invalid digest length " + digest.length() + ". Length must be " + digestLength);
+        }
+        long checksum = hash(digest, CHECKSUM_SEED);
+        for (int partition = 0; partition < HASH_COUNT; partition++) {
+            int cell = cellOf(digest, partition);
+            counts[cell] += count;
+            checksums[cell] ^= checksum;
+            for (int word = 0; word < 4; word++) {
+                keySums[cell * 4 + word] ^= digest.word(word);
+            }
+        }
+    }
+
+    /**
+     * A cell is pure when it holds a single digest, added or removed
+     */
+    private boolean isPure(int cell) {
+        if (counts[cell] != 1 && counts[cell] != -1) {
+            return false;
+        }
+        Digest digest = keyOf(cell);
+        if (hash(digest, CHECKSUM_SEED) != checksums[cell]) {
+            return false;
+        }
+        //a digest only ever lands in its own 3 cells, anything else is several digests that happen to pass the checksum
+        return cellOf(digest, cell / partitionSize) == cell;
+    }
+
+    private Digest keyOf(int cell) {
+        int offset = cell * 4;
+        return Digest.ofWords(keySums[offset], keySums[offset + 1], keySums[offset + 2], keySums[offset + 3], digestLength);
+    }
+
+    private int cellOf(Digest digest, int partition) {
+        long hash = hash(digest, partition + 1);
+        return partition * partitionSize + (int) Long.remainderUnsigned(hash, partitionSize);
+    }
+
+    /**
+     * Seeded hash of the digest words. Leaf hashes can't be used as is, they aren't always the output of a
+     * cryptographic digest
+     */
+    private static long hash(Digest digest, long seed) {
+        long hash = seed * 0x9E3779B97F4A7C15L;
+        for (int word = 0; word < 4; word++) {
+            hash = mix(hash ^ digest.word(word));
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        //murmur3 64 bit finalizer
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB93FE53B7CD3L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * The distinct leaf hashes of a tree, from left to right
+     */
+    /**
+     * Gets the hashes of the first set missing from the second one, in the order of the first set
+     */
+    private static Set<Digest> difference(Set<Digest> hashes, Set<Digest> otherHashes) {
+        Set<Digest> difference = new LinkedHashSet<>();
+        for (Digest hash : hashes) {
+            if (!otherHashes.contains(hash)) {
+                difference.add(hash);
+            }
+        }
+        return difference;
+    }
+
+    private static Set<Digest> leafHashes(MerkleTree<Digest, ?> tree) {
+        Set<Digest> hashes = new LinkedHashSet<>();
+        for (int i = 0; i < tree.getLeafCount(); i++) {
+            hashes.add(tree.getLeafHash(i));
+        }
+        return hashes;
+    }
+
+    /**
+     * The result of a reconciliation, the digests only one of the sides has
+     */
+    public static class Difference {
+
+        private final List<Digest> onlyLocal;
+
+        private final List<Digest> onlyRemote;
+
+        Difference(List<Digest> onlyLocal, List<Digest> onlyRemote) {
+            this.onlyLocal = Collections.unmodifiableList(onlyLocal);
+            this.onlyRemote = Collections.unmodifiableList(onlyRemote);
+        }
+
+        /**
+         * Gets the digests only the local side has
+         * @return - The digests, in no particular order
+         */
+        public List<Digest> getOnlyLocal() {
+            return onlyLocal;
+        }
+
+        /**
+         * Gets the digests only the remote side has
+         * @return - The digests, in no particular order
+         */
+        public List<Digest> getOnlyRemote() {
+            return onlyRemote;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package pt.shorty.merkleTree;
+
+/**
+ * Converts the data of the leafs of a tree to and from bytes, so that it can be written to a
+ * {@link MerkleTreeJournal}
+ * @param <T> - The data type
+ */
+public interface JournalCodec<T> {
+
+    /**
+     * Converts the data to bytes
+     * @param data - The data
+     * @return - The bytes, decoding them must give back equal data
+     */
+    byte[] encode(T data);
+
+    /**
+     * Converts bytes written by {@link #encode(Object)} back to data
+     * @param bytes - The bytes
+     * @return - The data
+     */
+    T decode(byte[] bytes);
+
+    /**
+     * Gets a codec for {@link Digest} hashes, to journal the node hashes of a tree
+     * @return - The codec
+     */
+    static JournalCodec<Digest> digests() {
+        return new JournalCodec<Digest>() {
+            @Override
+            public byte[] encode(Digest data) {
+                return data.toByteArray();
+            }
+
+            @Override
+            public Digest decode(byte[] bytes) {
+                return Digest.of(bytes);
+            }
+        };
+    }
+}
@@ -1,5 +1,7 @@
 package pt.shorty.merkleTree;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -22,7 +24,13 @@ public class LeafNode<V extends Comparable<V>,T extends Hashable<V>> extends Abs
      * always use the same algo for every instance of the same type, but this class implementation makes
      * no guarantees of consistency of hashing functions between all leaf nodes.
      */
-    private final T hashableData;
+    private T hashableData;
+
+    /**
+     * The hash of this leaf when the leaf was created out of a precomputed hash instead of
+     * out of data. Only used when there's no data
+     */
+    private V hash;
 
     /**
      * Creates a new instance of a LeafNode
@@ -46,34 +54,53 @@ public class LeafNode<V extends Comparable<V>,T extends Hashable<V>> extends Abs
     }
 
     /**
-     * {@inheritDoc}
+     * Creates a new leaf out of an already computed hash. The leaf has no data,
+     * so {@link #getData()} returns null
+     * @param hash - The hash of the leaf
+     * @return - The leaf node
      */
-    @Override
-    public V hash() {
-        return hashableData.hash();
+    static <V extends Comparable<V>, T extends Hashable<V>> LeafNode<V, T> ofHash(V hash) {
+        LeafNode<V, T> leafNode = new LeafNode<>((T) null);
+        leafNode.hash = hash;
+        return leafNode;
+    }
+
+    /**
+     * Casts a node known to be a leaf to a leaf of the data type of its tree. A tree only holds leafs of
+     * its own data type, but the type is not part of {@link AbstractNode}, so the cast can't be checked
+     * @param node - The leaf node
+     * @return - The same node, as a leaf
+     */
+    @SuppressWarnings("unchecked")
+    static <V extends Comparable<V>, T extends Hashable<V>> LeafNode<V, T> cast(AbstractNode<V> node) {
+        return (LeafNode<V, T>) node;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    boolean isLeaf() {
-        return true;
+    public V hash() {
+        if (hashableData == null) {
+            return hash;
+        }
+        return hashableData.hash();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean isRight() {
-        return parent.isRightNode(this);
+    boolean isLeaf() {
+        return true;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    void setParent(Node node) {
+    void setParent(Node<V> node) {
+        checkNotShared();
         this.parent = node;
     }
 
@@ -95,20 +122,55 @@ public class LeafNode<V extends Comparable<V>,T extends Hashable<V>> extends Abs
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    List<AbstractNode<V>> getChildren() {
+        return Collections.emptyList();
+    }
+
     /**
      * Returns the data of this leaf
-     * @return - The data
+     * @return - The data, or null if this leaf was created out of a precomputed hash
      */
     public T getData(){
         return hashableData;
     }
 
+    /**
+     * Replaces the data of this leaf. The cached hashes of the ancestors of this leaf are
+     * not touched, it's up to the caller to rehash or invalidate them
+     * @param hashableData - The new data
+     */
+    void setData(T hashableData) {
+        this.hashableData = hashableData;
+    }
+
+    /**
+     * Replaces the stored hash of a leaf created out of a precomputed hash. The cached hashes of the
+     * ancestors of this leaf are not touched
+     * @param hash - The new hash
+     */
+    void setHash(V hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Node<V> getParent() {
+        return parent;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        LeafNode<V,T> leafNode;
-        leafNode = (LeafNode<V,T>) o;
+        //same class, and leafs are only compared with leafs of the same hash type
+        @SuppressWarnings("unchecked")
+        LeafNode<V, ?> leafNode = (LeafNode<V, ?>) o;
         return this.hash().compareTo(leafNode.hash()) == 0;
     }
 
@@ -0,0 +1,16 @@
+package pt.shorty.merkleTree;
+
+/**
+ * The source of truth for the leafs of a tree, usually the underlying data, see {@link MerkleTreeScrubber}
+ * @param <V> - The hash type
+ */
+@FunctionalInterface
+public interface LeafSource<V extends Comparable<V>> {
+
+    /**
+     * Computes the hash of a leaf out of the underlying data, without looking at the tree
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @return - The hash the leaf should have
+     */
+    V leafHash(int index);
+}
@@ -0,0 +1,28 @@
+package pt.shorty.merkleTree;
+
+import java.util.List;
+
+/**
+ * An hash builder that hashes leafs and nodes in different domains, as RFC 6962 does by prefixing
+ * leaf hashes with a 0x00 byte and node hashes with a 0x01 byte. Without it a node hash, the hash of
+ * the concatenation of 2 child hashes, can be passed off as the hash of a leaf holding those 2 hashes,
+ * which breaks the proofs of a {@link MerkleLog}
+ */
+public interface LogHashBuilder<V extends Comparable<V>> extends HashBuilder<V> {
+
+    /**
+     * Creates the hash of a leaf out of the hash of its data, in the leaf domain
+     * @param hash - The hash of the leaf data
+     * @return - The leaf hash
+     */
+    V hashLeaf(V hash);
+
+    /**
+     * Creates the hash of a node out of the hashes of its children, in the node domain
+     * @param hashes - The hashes to hash
+     * @return - A single hash value
+     */
+    @Override
+    V hash(List<V> hashes);
+
+}
@@ -0,0 +1,236 @@
+package pt.shorty.merkleTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only merkle tree, shaped like the logs of RFC 6962 (certificate transparency): the root of n leafs
+ * is the hash of the root of the first k leafs, k being the largest power of 2 below n, and the root of the rest.
+ * Unlike {@link MerkleTree}, appending a leaf doesn't rebuild anything. Appends and the current root are handled by a
+ * {@link MerkleLogFrontier}, which only hashes the perfect subtrees (of 2^level leafs) completed by the new leaf,
+ * one on average, and folds the O(log n) frontier into the root.
+ * On top of the frontier the log stores the hash of every perfect subtree, about 2 hashes per leaf, so its memory
+ * is O(n): {@link #getConsistencyProof(int, int)} and {@link #getRootHash(int)} need the subtrees of any older size,
+ * which the frontier of the current size no longer has. Use a {@link MerkleLogFrontier} alone when only the current
+ * root is needed.
+ * As in RFC 6962, leafs and nodes are hashed in different domains by a {@link LogHashBuilder}, so that a node
+ * can't pass for a leaf, see {@link DigestHashBuilder#forLog()}.
+ * @param <V> - The hash type
+ */
+public class MerkleLog<V extends Comparable<V>> {
+
+    private final LogHashBuilder<V> hashBuilder;
+
+    /**
+     * Appends the leafs and holds the current root
+     */
+    private final MerkleLogFrontier<V> frontier;
+
+    /**
+     * The proof store, the roots of the perfect subtrees of each level, from left to right. Level 0 holds the
+     * leaf hashes, level l the roots of the subtrees of 2^l leafs
+     */
+    private final List<List<V>> levels = new ArrayList<>();
+
+    /**
+     * Creates a new, empty log
+     * @param hashBuilder - Builds the hashes of the leafs and of the nodes, in different domains
+     */
+    public MerkleLog(LogHashBuilder<V> hashBuilder) {
+        this.hashBuilder = hashBuilder;
+        this.frontier = new MerkleLogFrontier<>(hashBuilder);
+    }
+
+    /**
+     * Appends a leaf to this log
+     * @param data - The data of the leaf
+     * @return - The index of the leaf
+     */
+    public int append(Hashable<V> data) {
+        return appendHash(data.hash());
+    }
+
+    /**
+     * Appends a leaf out of an already computed hash
+     * @param hash - The hash of the leaf data, hashed again in the leaf domain, see {@link LogHashBuilder#hashLeaf(Comparable)}
+     * @return - The index of the leaf
+     */
+    public int appendHash(V hash) {
+        //the subtrees completed by the new leaf are hashed once, by the frontier, and kept in the store
+        return frontier.appendLeafHash(hashBuilder.hashLeaf(hash), levels);
+    }
+
+    /**
+     * Gets the number of leafs of this log
+     * @return - The number of leafs
+     */
+    public int getLeafCount() {
+        return frontier.getLeafCount();
+    }
+
+    /**
+     * Gets the hash of a single leaf, in the leaf domain
+     * @param index - The index of the leaf, starting at 0
+     * @return - The hash of the leaf
+     */
+    public V getLeafHash(int index) {
+        if (index < 0 || index >= getLeafCount()) {
+            throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (getLeafCount() - 1));
+        }
+        return levels.get(0).get(index);
+    }
+
+    /**
+     * Gets the root hash of this log
+     * @return - The root hash or null if this log has no leafs
+     */
+    public V getRootHash() {
+        return frontier.getRootHash();
+    }
+
+    /**
+     * Gets the root hash this log had when it had the supplied number of leafs
+     * @param treeSize - The number of leafs, at most the current leaf count
+     * @return - The root hash or null if tree size is 0
+     */
+    public V getRootHash(int treeSize) {
+        checkTreeSize(treeSize, getLeafCount());
+        if (treeSize == 0) {
+            return null;
+        }
+        //fold the frontier from the right, the smallest perfect subtree is the rightmost one
+        V hash = null;
+        int end = treeSize;
+        for (int level = 0; end > 0; level++) {
+            if ((treeSize & (1 << level)) == 0) {
+                continue;
+            }
+            V subtreeHash = levels.get(level).get((end >>> level) - 1);
+            hash = hash == null ? subtreeHash : hashBuilder.hash(Arrays.asList(subtreeHash, hash));
+            end -= 1 << level;
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the proof that the log at the old size is a prefix of the log at the new size, as in RFC 6962, section 2.1.2.
+     * The proof holds the hashes of the subtrees needed to compute both roots, at most about 2 log2(newSize),
+     * see {@link #verifyConsistency(LogHashBuilder, int, int, Comparable, Comparable, List)}
+     * @param oldSize - The number of leafs of the older log
+     * @param newSize - The number of leafs of the newer log, at most the current leaf count
+     * @return - The proof, empty if the sizes are equal or the old size is 0
+     */
+    public List<V> getConsistencyProof(int oldSize, int newSize) {
+        checkTreeSize(newSize, getLeafCount());
+        checkTreeSize(oldSize, newSize);
+        List<V> proof = new ArrayList<>();
+        if (oldSize > 0 && oldSize < newSize) {
+            subProof(proof, oldSize, 0, newSize, true);
+        }
+        return proof;
+    }
+
+    /**
+     * Verifies a consistency proof, as in RFC 9162, section 2.1.4.2
+     * @param hashBuilder - The hash builder of the log
+     * @param oldSize - The number of leafs of the older log
+     * @param newSize - The number of leafs of the newer log
+     * @param oldRootHash - The root hash of the older log
+     * @param newRootHash - The root hash of the newer log
+     * @param proof - The proof, see {@link #getConsistencyProof(int, int)}
+     * @return - True if the older log is a prefix of the newer log
+     */
+    public static <V extends Comparable<V>> boolean verifyConsistency(LogHashBuilder<V> hashBuilder, int oldSize, int newSize,
+                                                                     V oldRootHash, V newRootHash, List<V> proof) {
+        if (oldSize < 0 || oldSize > newSize) {
+            return false;
+        }
+        if (oldSize == newSize) {
+            return proof.isEmpty() && equal(oldRootHash, newRootHash);
+        }
+        if (oldSize == 0) {
+            //the empty log is a prefix of every log
+            return proof.isEmpty() && oldRootHash == null;
+        }
+        if (proof.isEmpty()) {
+            return false;
+        }
+        List<V> path = new ArrayList<>(proof);
+        if (Integer.bitCount(oldSize) == 1) {
+            //the old tree is a perfect subtree of the new one, so its root is the first hash of the path
+            path.add(0, oldRootHash);
+        }
+        int fn = oldSize - 1;
+        int sn = newSize - 1;
+        while ((fn & 1) == 1) {
+            fn >>>= 1;
+            sn >>>= 1;
+        }
+        V fr = path.get(0);
+        V sr = path.get(0);
+        for (V c : path.subList(1, path.size())) {
+            if (sn == 0) {
+                return false;
+            }
+            if ((fn & 1) == 1 || fn == sn) {
+                fr = hashBuilder.hash(Arrays.asList(c, fr));
+                sr = hashBuilder.hash(Arrays.asList(c, sr));
+                while ((fn & 1) == 0 && fn != 0) {
+                    fn >>>= 1;
+                    sn >>>= 1;
+                }
+            } else {
+                sr = hashBuilder.hash(Arrays.asList(sr, c));
+            }
+            fn >>>= 1;
+            sn >>>= 1;
+        }
+        return sn == 0 && equal(fr, oldRootHash) && equal(sr, newRootHash);
+    }
+
+    /**
+     * SUBPROOF(m, D[start:start + size], complete) of RFC 6962
+     */
+    private void subProof(List<V> proof, int m, int start, int size, boolean complete) {
+        if (m == size) {
+            if (!complete) {
+                proof.add(subtreeHash(start, size));
+            }
+            return;
+        }
+        int k = Integer.highestOneBit(size - 1);
+        if (m <= k) {
+            subProof(proof, m, start, k, complete);
+            proof.add(subtreeHash(start + k, size - k));
+        } else {
+            subProof(proof, m - k, start + k, size - k, false);
+            proof.add(subtreeHash(start, k));
+        }
+    }
+
+    /**
+     * Hash of the leafs from start to start + size, start is always a multiple of the largest power of 2 below size
+     */
+    private V subtreeHash(int start, int size) {
+        if (Integer.bitCount(size) == 1) {
+            int level = Integer.numberOfTrailingZeros(size);
+            return levels.get(level).get(start >>> level);
+        }
+        int k = Integer.highestOneBit(size - 1);
+        return hashBuilder.hash(Arrays.asList(subtreeHash(start, k), subtreeHash(start + k, size - k)));
+    }
+
+    private static void checkTreeSize(int treeSize, int maxSize) {
+        if (treeSize < 0 || treeSize > maxSize) {
+            throw new IllegalArgumentException("Invalid tree size " + treeSize + ". Tree size must be between 0 and " + maxSize);
+        }
+    }
+
+    private static <V extends Comparable<V>> boolean equal(V hash, V otherHash) {
+        if (hash == null || otherHash == null) {
+            return hash == otherHash;
+        }
+        return hash.compareTo(otherHash) == 0;
+    }
+}
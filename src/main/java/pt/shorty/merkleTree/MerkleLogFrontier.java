@@ -0,0 +1,132 @@
+package pt.shorty.merkleTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The frontier of an append-only merkle tree shaped like the logs of RFC 6962, see {@link MerkleLog}: the roots of
+ * the perfect subtrees (of 2^level leafs) for the set bits of the leaf count, at most one per level.
+ * Appending a leaf merges the perfect subtrees it completes, one on average, and the root is the fold of the
+ * frontier, so the frontier holds O(log n) hashes and gives the same root as a {@link MerkleLog} of the same leafs.
+ * Unlike {@link MerkleLog}, nothing of older sizes is kept, so there are no consistency proofs nor older roots.
+ * @param <V> - The hash type
+ */
+public class MerkleLogFrontier<V extends Comparable<V>> {
+
+    private final LogHashBuilder<V> hashBuilder;
+
+    /**
+     * The root of the perfect subtree of each level, level l holding a subtree of 2^l leafs. Null when
+     * bit l of the leaf count is not set
+     */
+    private final List<V> frontier = new ArrayList<>();
+
+    private int leafCount;
+
+    /**
+     * Cached root hash, cleared on append
+     */
+    private V rootHash;
+
+    /**
+     * Creates a new, empty frontier
+     * @param hashBuilder - Builds the hashes of the leafs and of the nodes, in different domains
+     */
+    public MerkleLogFrontier(LogHashBuilder<V> hashBuilder) {
+        this.hashBuilder = hashBuilder;
+    }
+
+    /**
+     * Appends a leaf
+     * @param data - The data of the leaf
+     * @return - The index of the leaf
+     */
+    public int append(Hashable<V> data) {
+        return appendHash(data.hash());
+    }
+
+    /**
+     * Appends a leaf out of an already computed hash
+     * @param hash - The hash of the leaf data, hashed again in the leaf domain, see {@link LogHashBuilder#hashLeaf(Comparable)}
+     * @return - The index of the leaf
+     */
+    public int appendHash(V hash) {
+        return appendLeafHash(hashBuilder.hashLeaf(hash), null);
+    }
+
+    /**
+     * Appends a leaf hash already in the leaf domain
+     * @param leafHash - The hash of the leaf
+     * @param levels - Receives the leaf hash and the root of each perfect subtree the leaf completes, at the end of
+     *               the list of their level, see {@link MerkleLog}. Null to keep nothing but the frontier
+     * @return - The index of the leaf
+     */
+    int appendLeafHash(V leafHash, List<List<V>> levels) {
+        V hash = leafHash;
+        int level = 0;
+        store(levels, level, hash);
+        //every subtree of the same size to the left makes a perfect subtree one level up
+        while (level < frontier.size() && frontier.get(level) != null) {
+            hash = hashBuilder.hash(Arrays.asList(frontier.get(level), hash));
+            frontier.set(level, null);
+            level++;
+            store(levels, level, hash);
+        }
+        if (level == frontier.size()) {
+            frontier.add(hash);
+        } else {
+            frontier.set(level, hash);
+        }
+        rootHash = null;
+        return leafCount++;
+    }
+
+    /**
+     * Gets the number of leafs appended
+     * @return - The number of leafs
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Gets the root hash, the fold of the frontier
+     * @return - The root hash or null if there are no leafs
+     */
+    public V getRootHash() {
+        if (rootHash == null) {
+            //fold from the right, the smallest perfect subtree is the rightmost one
+            for (V subtreeHash : frontier) {
+                if (subtreeHash != null) {
+                    rootHash = rootHash == null ? subtreeHash : hashBuilder.hash(Arrays.asList(subtreeHash, rootHash));
+                }
+            }
+        }
+        return rootHash;
+    }
+
+    /**
+     * Gets the number of hashes held by the frontier, which is the number of set bits of the leaf count
+     * @return - The number of hashes
+     */
+    int getFrontierSize() {
+        int size = 0;
+        for (V subtreeHash : frontier) {
+            if (subtreeHash != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static <V> void store(List<List<V>> levels, int level, V hash) {
+        if (levels == null) {
+            return;
+        }
+        if (levels.size() == level) {
+            levels.add(new ArrayList<>());
+        }
+        levels.get(level).add(hash);
+    }
+}
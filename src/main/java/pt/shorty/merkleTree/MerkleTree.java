@@ -1,5 +1,6 @@
 package pt.shorty.merkleTree;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -7,11 +8,47 @@ import java.util.*;
  * detecting missing info.
  * This Merkel Tree does not provide leak safeness, if a node is requested, the actual is returned,
  * not a copy of the node.
+ * The hashes of the internal nodes are computed once and cached, so the tree only notices leaf changes made through
+ * {@link #applyBatch(Map)}. Data mutated in place, whose {@link Hashable#hash()} now returns something else, leaves the
+ * cached hashes above it stale until the leaf is passed to {@link #applyBatch(Map)} again.
  * @param <T> - The type of data to use with the instance of the tree
  */
 public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
+
+    /**
+     * Minimum number of dirty nodes in a level before they are rehashed in parallel.
+     * Below this the cost of forking is higher than the hashing itself
+     */
+    private static final int PARALLEL_REHASH_THRESHOLD = 64;
+
+    /**
+     * The number of children per node used when none is supplied
+     */
+    public static final int DEFAULT_FANOUT = 2;
+
     private Node<V> root = null;
 
+    /**
+     * The leafs of this tree, ordered from left to right. Allows for direct access to a leaf by index
+     */
+    private final ArrayList<LeafNode<V, T>> leafs = new ArrayList<>();
+
+    /**
+     * The max number of children of each internal node
+     */
+    private final int fanout;
+
+    /**
+     * If the nodes of this tree are shared with other trees, see {@link SubtreeInterner}
+     */
+    private boolean readOnly;
+
+    /**
+     * Bumped by every batch, before the tree is touched, so a walk of the tree spread over time,
+     * see {@link MerkleTreeScrubber}, can tell the tree changed under it
+     */
+    private volatile long modificationCount;
+
     /**
      * Constructs this tree out of a list of sorted data elements
      *
@@ -23,9 +60,119 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
      *                    Merkel Tree implementation is expected to call with hashing Pairs
      */
     public MerkleTree(List<T> dataElements, HashBuilder<V> hashBuilder) {
+        this(dataElements, hashBuilder, DEFAULT_FANOUT);
+    }
+
+    /**
+     * Constructs this tree out of a list of sorted data elements, where each internal node has up to fanout children.
+     * A higher fanout makes for a shallower tree, so updating a leaf touches fewer hashes and a level by
+     * level comparison takes fewer steps, at the cost of hashing more children per node
+     *
+     * @param dataElements - The data that will constitute the leafs of this tree.
+     *                     Data is expected to be sorted
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs,
+     *                    it's called with the hashes of up to fanout children
+     * @param fanout - The max number of children of each internal node, at least 2
+     */
+    public MerkleTree(List<T> dataElements, HashBuilder<V> hashBuilder, int fanout) {
+        this(fanout);
         initTree(dataElements, hashBuilder);
     }
 
+    private MerkleTree(int fanout) {
+        if (fanout < 2) {
+            throw new IllegalArgumentException("Invalid fanout " + fanout + ". Fanout must be at least 2");
+        }
+        this.fanout = fanout;
+    }
+
+    /**
+     * Constructs a tree directly out of the hashes of the leafs, for when the hashes are already
+     * known (for example, stored along with the data). No data object is created per leaf, the leafs
+     * of the returned tree hold only the hash and have no data. Each leaf is still a {@link LeafNode} holding
+     * the supplied hash object, see {@link OffHeapMerkleTree} for a tree with no object per leaf.
+     * Leafs replaced through {@link #applyBatch(Map)} hold the supplied {@link Hashable} as usual.
+     * @param hashes - The leaf hashes, expected to be sorted in the same order as the data they were computed from
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs
+     * @return - The tree
+     */
+    public static <V extends Comparable<V>> MerkleTree<V, Hashable<V>> fromHashes(List<V> hashes, HashBuilder<V> hashBuilder) {
+        return fromHashes(hashes, hashBuilder, DEFAULT_FANOUT);
+    }
+
+    /**
+     * Constructs a tree directly out of the hashes of the leafs, where each internal node has up to fanout children.
+     * See {@link #fromHashes(List, HashBuilder)}
+     * @param hashes - The leaf hashes, expected to be sorted in the same order as the data they were computed from
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs
+     * @param fanout - The max number of children of each internal node, at least 2
+     * @return - The tree
+     */
+    public static <V extends Comparable<V>> MerkleTree<V, Hashable<V>> fromHashes(List<V> hashes, HashBuilder<V> hashBuilder,
+                                                                                   int fanout) {
+        MerkleTree<V, Hashable<V>> tree = new MerkleTree<>(fanout);
+        tree.leafs.ensureCapacity(hashes.size());
+        for (V hash : hashes) {
+            tree.leafs.add(LeafNode.ofHash(hash));
+        }
+        tree.condenseBranches(1, tree.leafs, hashBuilder);
+        return tree;
+    }
+
+    /**
+     * Constructs a tree directly out of the hashes of the leafs.
+     * See {@link #fromHashes(List, HashBuilder)}
+     * @param hashes - The leaf hashes, expected to be sorted in the same order as the data they were computed from
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs
+     * @return - The tree
+     */
+    public static <V extends Comparable<V>> MerkleTree<V, Hashable<V>> fromHashes(V[] hashes, HashBuilder<V> hashBuilder) {
+        return fromHashes(Arrays.asList(hashes), hashBuilder);
+    }
+
+    /**
+     * Constructs a tree directly out of a buffer of fixed width digests laid out back to back,
+     * for example as read from a file or a database column.
+     * The digests are read from the position to the limit of the buffer, the buffer itself is not modified.
+     * Each digest is read straight into its leaf, which still costs a leaf node and a {@link Digest} per leaf,
+     * see {@link OffHeapMerkleTree} for a tree with no object per node.
+     * See {@link #fromHashes(List, HashBuilder)}
+     * @param digests - The buffer holding the leaf digests
+     * @param digestLength - The length in bytes of each digest
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs
+     * @return - The tree
+     */
+    public static MerkleTree<Digest, Hashable<Digest>> fromDigests(ByteBuffer digests, int digestLength,
+                                                                   HashBuilder<Digest> hashBuilder) {
+        return fromDigests(digests, digestLength, hashBuilder, DEFAULT_FANOUT);
+    }
+
+    /**
+     * Constructs a tree directly out of a buffer of fixed width digests, where each internal node has up to fanout children.
+     * See {@link #fromDigests(ByteBuffer, int, HashBuilder)}
+     * @param digests - The buffer holding the leaf digests
+     * @param digestLength - The length in bytes of each digest
+     * @param hashBuilder - A builder of hashes that will be used by other nodes other than the leafs
+     * @param fanout - The max number of children of each internal node, at least 2
+     * @return - The tree
+     */
+    public static MerkleTree<Digest, Hashable<Digest>> fromDigests(ByteBuffer digests, int digestLength,
+                                                                   HashBuilder<Digest> hashBuilder, int fanout) {
+        if (digestLength <= 0 || digests.remaining() % digestLength != 0) {
+            throw new IllegalArgumentException("Buffer holds " + digests.remaining()
+                    + " bytes, which is not a multiple of the digest length " + digestLength);
+        }
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(fanout);
+        ByteBuffer buffer = digests.duplicate();
+        //each digest goes straight into its leaf, no intermediate array or list of digests
+        tree.leafs.ensureCapacity(buffer.remaining() / digestLength);
+        while (buffer.hasRemaining()) {
+            tree.leafs.add(LeafNode.ofHash(Digest.read(buffer, digestLength)));
+        }
+        tree.condenseBranches(1, tree.leafs, hashBuilder);
+        return tree;
+    }
+
     /**
      * Initializes the leaf nodes out of the data elements
      * @param dataElements - The data elements that will constitute the leafs of this tree.
@@ -36,10 +183,9 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
      *
      */
     private void initTree(List<T> dataElements, HashBuilder<V> hashBuilder) {
-        Queue<AbstractNode<V>> leafs = new ArrayDeque<>();
+        leafs.ensureCapacity(dataElements.size());
         for (T data : dataElements) {
-            LeafNode<V, T> leafNode = new LeafNode<>(data);
-            leafs.add(leafNode);
+            leafs.add(new LeafNode<>(data));
         }
         condenseBranches(1, leafs, hashBuilder);
     }
@@ -47,29 +193,25 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
     /**
      * Constructs the branches of this tree given the initial leaf nodes
      * @param level - The current level of the nodes
-     * @param nodes - The queue of nodes to add
+     * @param nodes - The nodes of the level below, from left to right
      * @param hashBuilder - The hash builder
      */
-    private void condenseBranches(int level, Queue<AbstractNode<V>> nodes, HashBuilder<V> hashBuilder) {
-        if (nodes.size() == 0) {
+    private void condenseBranches(int level, List<? extends AbstractNode<V>> nodes, HashBuilder<V> hashBuilder) {
+        if (nodes.isEmpty()) {
             return;
         }
-        Queue<AbstractNode<V>> upperNodes = new ArrayDeque<>();
-        while (nodes.size() > 0) {
+        List<Node<V>> upperNodes = new ArrayList<>((nodes.size() + fanout - 1) / fanout);
+        for (int first = 0; first < nodes.size(); first += fanout) {
             Node<V> localRootNode = new Node<V>(level, hashBuilder);
-            AbstractNode<V> leftNode = nodes.poll();
-            localRootNode.setLeftChild(leftNode);
-            if (nodes.size() > 0) {
-                AbstractNode<V> rightNode = nodes.poll();
-                localRootNode.setRightChild(rightNode);
+            for (int i = first; i < first + fanout && i < nodes.size(); i++) {
+                localRootNode.addChild(nodes.get(i));
             }
             upperNodes.add(localRootNode);
         }
-        if (upperNodes.size() == 1 || upperNodes.size() == 2) {
+        if (upperNodes.size() <= fanout) {
             root = new Node<V>(level + 1, hashBuilder);
-            root.setLeftChild(upperNodes.poll());
-            if (upperNodes.size() == 1) {
-                root.setRightChild(upperNodes.poll());
+            for (Node<V> upperNode : upperNodes) {
+                root.addChild(upperNode);
             }
             return;
         }
@@ -85,6 +227,131 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
         return root;
     }
 
+    /**
+     * Gets the hash of the root node of this tree. The hash is cached, it reflects the leaf data as of the construction
+     * of the tree and the updates made through {@link #applyBatch(Map)}, not data mutated in place afterwards
+     * @return - The root hash or null if this tree has no nodes
+     */
+    public V getRootHash() {
+        if (root == null) {
+            return null;
+        }
+        return root.hash();
+    }
+
+    /**
+     * Gets the number of leafs of this tree
+     * @return - The number of leafs
+     */
+    public int getLeafCount() {
+        return leafs.size();
+    }
+
+    /**
+     * Gets the hash of a single leaf
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @return - The hash of the leaf
+     */
+    public V getLeafHash(int index) {
+        if (index < 0 || index >= leafs.size()) {
+            throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (leafs.size() - 1));
+        }
+        return leafs.get(index).hash();
+    }
+
+    /**
+     * Gets the data of a single leaf
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @return - The data of the leaf, or null if the leaf was created out of a precomputed hash
+     */
+    public T getLeafData(int index) {
+        if (index < 0 || index >= leafs.size()) {
+            throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (leafs.size() - 1));
+        }
+        return leafs.get(index).getData();
+    }
+
+    /**
+     * Gets the max number of children of each internal node of this tree
+     * @return - The fanout
+     */
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Replaces the data of several leafs at once and rehashes the tree.
+     * All leafs are replaced first, then every internal node that has at least one replaced leaf below it
+     * is rehashed exactly once, level by level from the bottom up, so ancestors shared by several
+     * replaced leafs are not hashed once per leaf. Nodes of the same level sit on disjoint subtrees,
+     * so big levels are rehashed in parallel, which requires the {@link HashBuilder} of this tree to be thread safe.
+     * Batches hold the lock of the tree, which {@link MerkleTreeScrubber} takes while checking it.
+     * @param updates - The new data for each leaf, keyed by the index of the leaf, from left to right starting at 0
+     */
+    public synchronized void applyBatch(Map<Integer, T> updates) {
+        if (readOnly) {
+            throw new IllegalStateException("Tree is read only, its nodes are shared with other trees");
+        }
+        //validate everything before touching the tree, a bad index should not leave the tree half updated
+        for (Integer index : updates.keySet()) {
+            if (index == null || index < 0 || index >= leafs.size()) {
+                throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (leafs.size() - 1));
+            }
+        }
+        modificationCount++;
+        Set<Node<V>> dirtyNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<Integer, T> update : updates.entrySet()) {
+            LeafNode<V, T> leafNode = leafs.get(update.getKey());
+            leafNode.setData(update.getValue());
+            dirtyNodes.add(leafNode.getParent());
+        }
+        //every parent sits exactly one level above its children, so each pass handles a single level
+        while (!dirtyNodes.isEmpty()) {
+            if (dirtyNodes.size() >= PARALLEL_REHASH_THRESHOLD) {
+                new ArrayList<>(dirtyNodes).parallelStream().forEach(Node::rehash);
+            } else {
+                dirtyNodes.forEach(Node::rehash);
+            }
+            Set<Node<V>> dirtyParents = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Node<V> node : dirtyNodes) {
+                if (node.getParent() != null) {
+                    dirtyParents.add(node.getParent());
+                }
+            }
+            dirtyNodes = dirtyParents;
+        }
+    }
+
+    /**
+     * Gets the number of batches applied to this tree, see {@link #applyBatch(Map)}
+     * @return - The modification count
+     */
+    long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Checks if this tree can be updated
+     * @return - True if the nodes of this tree are shared with other trees, in which case it can't be updated
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Replaces the root of this tree with an equal one, whose nodes are shared with other trees,
+     * which makes this tree read only
+     * @param sharedRoot - The new root, with the same hash as the current one
+     */
+    void share(Node<V> sharedRoot) {
+        root = sharedRoot;
+        readOnly = true;
+        leafs.clear();
+        for (AbstractNode<V> leafNode : getLeafNodes()) {
+            leafs.add(LeafNode.cast(leafNode));
+        }
+    }
+
     /**
      * Gets the current depth of this tree.
      * If no node is preset in this tree, then -1 is returned
@@ -111,12 +378,7 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
         int currentLevel = root.getLevel();
         while(!nodeQueue.isEmpty()){
             AbstractNode<V> currentNode = nodeQueue.poll();
-            if(currentNode.getLeftChild() != null){
-                nodeQueue.add(currentNode.getLeftChild());
-            }
-            if(currentNode.getRightChild() != null){
-                nodeQueue.add(currentNode.getRightChild());
-            }
+            nodeQueue.addAll(currentNode.getChildren());
             if(currentLevel != currentNode.getLevel()){
                 printer.newLine();
                 currentLevel = currentNode.getLevel();
@@ -171,24 +433,114 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
         //Keeps track of visited leaf nodes, both for this instance and for
         //the other tree
         Map<V,LeafNode<V,T>> diffMap = new HashMap<>();
-        Queue<LeafNode<V,T>> returnQueue = new ArrayDeque<>();
-        diffNodes(diffMap,returnQueue,this.root,otherRoot);
-        return returnQueue;
+        //keyed by hash and kept in insertion order, so a diff found to be a false one can be taken back
+        //in constant time instead of by scanning every diff found so far
+        Map<V,LeafNode<V,T>> returnMap = new LinkedHashMap<>();
+        diffNodes(diffMap,returnMap,this.root,otherRoot);
+        return new ArrayDeque<>(returnMap.values());
     }
 
 
-    private void diffNodes(Map<V,LeafNode<V,T>> diffMap,Queue<LeafNode<V,T>> returnQueue,AbstractNode<V> localNode, AbstractNode<V> otherNode){
+    /**
+     * Diffs this tree with the supplied one, handing each difference to the visitor as soon as it's found,
+     * instead of collecting all of them first. Differences are found from left to right, using this tree as
+     * the reference, same as {@link #diff(MerkleTree)}. The diff stops after maxDifferences are found or when
+     * the visitor returns false, and the returned cursor continues it from there, which allows for
+     * paging through the differences of badly diverged trees and for spreading the work over time.
+     * Unlike {@link #diff(MerkleTree)}, which reports each hash once, every differing leaf is reported, so the cursor
+     * holds no hashes of the differences found. Both return the same leafs in the same order when the differing
+     * leafs have distinct hashes, except that {@link #diff(MerkleTree)} takes a reported leaf back when a leaf with
+     * the same hash is found further to the right, while a leaf handed to the visitor stays reported.
+     * @param otherTree - The tree to compare with
+     * @param visitor - Receives each difference found
+     * @param maxDifferences - The max number of differences to find before stopping
+     * @return - A cursor to continue the diff, see {@link DiffCursor#isComplete()}
+     */
+    public DiffCursor<V, T> diff(MerkleTree<V, T> otherTree, DiffVisitor<V, T> visitor, int maxDifferences) {
+        DiffCursor<V, T> cursor = new DiffCursor<>(this.root, otherTree.getRoot());
+        cursor.resume(visitor, maxDifferences);
+        return cursor;
+    }
+
+    /**
+     * Diffs this tree with the supplied one in both directions at once, walking each tree a single time.
+     * Unlike {@link #diff(MerkleTree)}, neither tree is a pivot: leafs only in this tree, leafs only in the other
+     * tree and leafs that changed are all returned, see {@link SymmetricDiff}.
+     * Trees of different depths are aligned by the left, which is where they match when the deeper one had leafs
+     * appended: the deeper tree is descended along its leftmost path down to the level of the other root, the node
+     * found there is compared with the other root, and the siblings to the right of that path are only in the deeper tree.
+     * @param otherTree - The tree to compare with
+     * @return - The differences
+     */
+    public SymmetricDiff<V, T> symmetricDiff(MerkleTree<V, T> otherTree) {
+        SymmetricDiff<V, T> result = new SymmetricDiff<>();
+        AbstractNode<V> localNode = this.root;
+        AbstractNode<V> otherNode = otherTree.getRoot();
+        //siblings of the leftmost path of the deeper tree, from the root down
+        List<AbstractNode<V>> localSiblings = new ArrayList<>();
+        List<AbstractNode<V>> otherSiblings = new ArrayList<>();
+        if (localNode != null && otherNode != null) {
+            while (localNode.getLevel() > otherNode.getLevel()) {
+                List<AbstractNode<V>> children = localNode.getChildren();
+                localSiblings.addAll(0, children.subList(1, children.size()));
+                localNode = children.get(0);
+            }
+            while (otherNode.getLevel() > localNode.getLevel()) {
+                List<AbstractNode<V>> children = otherNode.getChildren();
+                otherSiblings.addAll(0, children.subList(1, children.size()));
+                otherNode = children.get(0);
+            }
+        }
+        symmetricDiffNodes(result, localNode, otherNode);
+        //lower siblings were added first, so the leafs come out from left to right
+        for (AbstractNode<V> sibling : localSiblings) {
+            symmetricDiffNodes(result, sibling, null);
+        }
+        for (AbstractNode<V> sibling : otherSiblings) {
+            symmetricDiffNodes(result, null, sibling);
+        }
+        return result;
+    }
+
+    private void symmetricDiffNodes(SymmetricDiff<V, T> result, AbstractNode<V> localNode, AbstractNode<V> otherNode) {
+        if (localNode == otherNode) {
+            //same instance (or both null), nothing below can differ
+            return;
+        }
+        if (localNode != null && otherNode != null && localNode.hash().compareTo(otherNode.hash()) == 0) {
+            return;
+        }
+        if (localNode instanceof LeafNode || otherNode instanceof LeafNode) {
+            if (otherNode == null) {
+                result.addOnlyInLeft(LeafNode.cast(localNode));
+            } else if (localNode == null) {
+                result.addOnlyInRight(LeafNode.cast(otherNode));
+            } else {
+                result.addChanged(LeafNode.cast(localNode), LeafNode.cast(otherNode));
+            }
+            return;
+        }
+        List<AbstractNode<V>> localChildren = localNode == null ? Collections.emptyList() : localNode.getChildren();
+        List<AbstractNode<V>> otherChildren = otherNode == null ? Collections.emptyList() : otherNode.getChildren();
+        for (int i = 0; i < Math.max(localChildren.size(), otherChildren.size()); i++) {
+            symmetricDiffNodes(result,
+                    i < localChildren.size() ? localChildren.get(i) : null,
+                    i < otherChildren.size() ? otherChildren.get(i) : null);
+        }
+    }
+
+    private void diffNodes(Map<V,LeafNode<V,T>> diffMap,Map<V,LeafNode<V,T>> returnMap,AbstractNode<V> localNode, AbstractNode<V> otherNode){
         if(localNode instanceof Node
                 && otherNode instanceof LeafNode
                 && !diffMap.containsKey(otherNode.hash())){
-            diffMap.put(otherNode.hash(), (LeafNode<V, T>) otherNode);
+            diffMap.put(otherNode.hash(), LeafNode.<V, T>cast(otherNode));
         } else if(localNode instanceof Node
                 && otherNode instanceof LeafNode
                 && diffMap.containsKey(otherNode.hash())){
             //we added this node from this instance, however, it seems
             //that the other tree contains a node with the same hash,
             //so we remove it since it's not a diff
-            returnQueue.remove(otherNode);
+            returnMap.remove(otherNode.hash());
         }
 
         if(localNode == null){
@@ -198,39 +550,51 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
         }
         if(otherNode == null){
             //all leafs starting from local node are diff
-            addAllLeafNodeFromStartingFromNode(diffMap,returnQueue,localNode);
+            addAllLeafNodeFromStartingFromNode(diffMap,returnMap,localNode);
+            return;
+        }
+        if(localNode == otherNode){
+            //same instance, shared between trees
             return;
         }
 
         if (localNode.hash().compareTo(otherNode.hash()) != 0){
             if (localNode instanceof LeafNode<?,?>
                     && !diffMap.containsKey(localNode.hash())){
-                diffMap.put(localNode.hash(),(LeafNode<V, T>) localNode);
-                returnQueue.add((LeafNode<V, T>) localNode);
+                LeafNode<V, T> leafNode = LeafNode.cast(localNode);
+                diffMap.put(localNode.hash(), leafNode);
+                returnMap.put(localNode.hash(), leafNode);
                 return;
             }
-            diffNodes(diffMap, returnQueue,localNode.getLeftChild(), otherNode.getLeftChild());
-            diffNodes(diffMap, returnQueue,localNode.getRightChild(), otherNode.getRightChild());
+            //children are matched by position, only this instance children are used to calculate diffs
+            List<AbstractNode<V>> localChildren = localNode.getChildren();
+            List<AbstractNode<V>> otherChildren = otherNode.getChildren();
+            for (int i = 0; i < localChildren.size(); i++) {
+                AbstractNode<V> otherChild = i < otherChildren.size() ? otherChildren.get(i) : null;
+                diffNodes(diffMap, returnMap, localChildren.get(i), otherChild);
+            }
         }
     }
 
     private void addAllLeafNodeFromStartingFromNode(Map<V,LeafNode<V,T>> diffMap,
-                                                    Queue<LeafNode<V,T>> returnQueue,
+                                                    Map<V,LeafNode<V,T>> returnMap,
                                                     AbstractNode<V> node){
         if(node == null){
             return;
         }
         if (node instanceof LeafNode<?,?>) {
             if (!diffMap.containsKey(node.hash())){
-                diffMap.put(node.hash(), (LeafNode<V, T>) node);
-                returnQueue.add((LeafNode<V, T>) node);
+                LeafNode<V, T> leafNode = LeafNode.cast(node);
+                diffMap.put(node.hash(), leafNode);
+                returnMap.put(node.hash(), leafNode);
             } else {
-                returnQueue.remove(node);
+                returnMap.remove(node.hash());
             }
             return;
         }
-        addAllLeafNodeFromStartingFromNode(diffMap,returnQueue,node.getLeftChild());
-        addAllLeafNodeFromStartingFromNode(diffMap,returnQueue,node.getRightChild());
+        for (AbstractNode<V> child : node.getChildren()) {
+            addAllLeafNodeFromStartingFromNode(diffMap,returnMap,child);
+        }
     }
 
 
@@ -243,8 +607,9 @@ public class MerkleTree<V extends Comparable<V>, T extends Hashable<V>> {
             resultSet.add(currentNode);
             return;
         }
-        transverse(resultSet,currentNode.getLeftChild(),searchLevel);
-        transverse(resultSet,currentNode.getRightChild(),searchLevel);
+        for (AbstractNode<V> child : currentNode.getChildren()) {
+            transverse(resultSet,child,searchLevel);
+        }
     }
 
 
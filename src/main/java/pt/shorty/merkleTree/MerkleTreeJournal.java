@@ -0,0 +1,403 @@
+package pt.shorty.merkleTree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Makes the leaf updates of a {@link MerkleTree} durable, so that a restart doesn't require rebuilding the tree
+ * out of the original dataset.
+ * The journal keeps two files in its directory: a snapshot with the data of every leaf and the hash of every
+ * internal node, and a journal with the updates made since the snapshot was written. Updates go through
+ * {@link #applyBatch(Map)}, which appends them to the journal as a single record and forces it to disk before
+ * they're applied to the tree, one force per batch.
+ * {@link #recover(Path, JournalCodec, JournalCodec, HashBuilder)} loads the snapshot, taking the node hashes as
+ * stored instead of hashing the leaf data again, and replays the journal on top of it with a single
+ * {@link MerkleTree#applyBatch(Map)}. Loading decodes every leaf, but the hashing costs the number of updated
+ * leafs in the journal, not the size of the tree.
+ * A record only partially written when the process died (a torn tail) fails its checksum and is dropped whole,
+ * which is safe since its batch was never applied, so a batch is either fully recovered or not at all.
+ * {@link #compact()} writes a new snapshot and empties the journal.
+ * The journal owns the tree, it must only be updated through the journal.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class MerkleTreeJournal<V extends Comparable<V>, T extends Hashable<V>> implements Closeable {
+
+    private static final int MAGIC = 0x4d4b544a;
+
+    private static final int VERSION = 2;
+
+    private static final String SNAPSHOT_FILE = "tree.snapshot";
+
+    private static final String JOURNAL_FILE = "tree.journal";
+
+    /**
+     * Update count, payload length and checksum of each journal record
+     */
+    private static final int RECORD_OVERHEAD = 12;
+
+    /**
+     * Leaf index and data length of each update in a record
+     */
+    private static final int UPDATE_OVERHEAD = 8;
+
+    private final Path directory;
+
+    private final JournalCodec<T> codec;
+
+    private final JournalCodec<V> hashCodec;
+
+    private final MerkleTree<V, T> tree;
+
+    private final FileChannel journal;
+
+    /**
+     * Set when a failed write couldn't be rolled back, the journal may hold part of a record
+     */
+    private boolean failed;
+
+    MerkleTreeJournal(Path directory, JournalCodec<T> codec, JournalCodec<V> hashCodec, MerkleTree<V, T> tree, FileChannel journal) {
+        this.directory = directory;
+        this.codec = codec;
+        this.hashCodec = hashCodec;
+        this.tree = tree;
+        this.journal = journal;
+    }
+
+    /**
+     * Starts journaling a tree. A snapshot of the tree is written to the directory, replacing any previous one
+     * @param directory - The directory to keep the snapshot and journal in, must exist
+     * @param tree - The tree, every leaf must have data
+     * @param codec - Converts the data of the leafs to bytes
+     * @param hashCodec - Converts the hashes of the nodes to bytes, see {@link JournalCodec#digests()}
+     * @return - The journal
+     * @throws IOException - If the files can't be written
+     */
+    public static <V extends Comparable<V>, T extends Hashable<V>> MerkleTreeJournal<V, T> create(Path directory, MerkleTree<V, T> tree,
+                                                                                                 JournalCodec<T> codec,
+                                                                                                 JournalCodec<V> hashCodec) throws IOException {
+        for (int i = 0; i < tree.getLeafCount(); i++) {
+            if (tree.getLeafData(i) == null) {
+                throw new IllegalArgumentException("Invalid leaf " + i + ". Leafs must have data to be journaled");
+            }
+        }
+        writeSnapshot(directory, tree, codec, hashCodec);
+        FileChannel journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            journal.force(true);
+            DirectorySnapshot.forceDirectory(directory);
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return new MerkleTreeJournal<>(directory, codec, hashCodec, tree, journal);
+    }
+
+    /**
+     * Rebuilds the tree out of the last snapshot and the updates journaled after it.
+     * The node hashes are taken from the snapshot, only the nodes above the journaled updates are hashed
+     * @param directory - The directory the journal was created in
+     * @param codec - Converts bytes back to the data of the leafs
+     * @param hashCodec - Converts bytes back to the hashes of the nodes
+     * @param hashBuilder - The hash builder of the tree
+     * @return - The journal, see {@link #getTree()}
+     * @throws IOException - If the files can't be read or the snapshot is not valid
+     */
+    public static <V extends Comparable<V>, T extends Hashable<V>> MerkleTreeJournal<V, T> recover(Path directory, JournalCodec<T> codec,
+                                                                                                  JournalCodec<V> hashCodec,
+                                                                                                  HashBuilder<V> hashBuilder) throws IOException {
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        List<T> dataElements = new ArrayList<>();
+        List<V> nodeHashes = new ArrayList<>();
+        int fanout;
+        try (CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)), new CRC32());
+             DataInputStream in = new DataInputStream(checkedIn)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a tree snapshot file " + snapshotFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of tree snapshot file " + snapshotFile);
+            }
+            fanout = in.readInt();
+            int leafCount = in.readInt();
+            for (int i = 0; i < leafCount; i++) {
+                dataElements.add(codec.decode(readBytes(in)));
+            }
+            int nodeCount = in.readInt();
+            for (int i = 0; i < nodeCount; i++) {
+                nodeHashes.add(hashCodec.decode(readBytes(in)));
+            }
+            long checksum = checkedIn.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw new IOException("Corrupted tree snapshot file " + snapshotFile);
+            }
+        }
+        //building the tree hashes nothing, the nodes get their hashes from the snapshot
+        MerkleTree<V, T> tree = new MerkleTree<>(dataElements, hashBuilder, fanout);
+        List<Node<V>> nodes = internalNodes(tree);
+        if (nodes.size() != nodeHashes.size()) {
+            throw new IOException("Corrupted tree snapshot file " + snapshotFile + ", it has " + nodeHashes.size()
+                    + " node hashes for a tree of " + nodes.size() + " nodes");
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).setHash(nodeHashes.get(i));
+        }
+
+        Path journalFile = directory.resolve(JOURNAL_FILE);
+        Map<Integer, T> updates = new HashMap<>();
+        long validLength = readJournal(journalFile, tree.getLeafCount(), codec, updates);
+        FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            //the journal file may have just been created
+            DirectorySnapshot.forceDirectory(directory);
+            if (journal.size() > validLength) {
+                //torn tail, the batch it belongs to was never applied
+                journal.truncate(validLength);
+                journal.force(true);
+            }
+            journal.position(validLength);
+            tree.applyBatch(updates);
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return new MerkleTreeJournal<>(directory, codec, hashCodec, tree, journal);
+    }
+
+    /**
+     * Gets the journaled tree
+     * @return - The tree
+     */
+    public MerkleTree<V, T> getTree() {
+        return tree;
+    }
+
+    /**
+     * Updates a single leaf, see {@link #applyBatch(Map)}
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @param data - The new data of the leaf
+     * @throws IOException - If the update can't be written to the journal
+     */
+    public void update(int index, T data) throws IOException {
+        Map<Integer, T> updates = new HashMap<>();
+        updates.put(index, data);
+        applyBatch(updates);
+    }
+
+    /**
+     * Writes the updates to the journal, forces the journal to disk and then applies the updates to the tree.
+     * If the write fails, the journal is truncated back to where the record started and the tree is not updated.
+     * If the truncation fails too, the journal is left failed, every later update throws and the journal
+     * has to be recovered, which replays the record only if it was fully written
+     * @param updates - The new data for each leaf, keyed by the index of the leaf
+     * @throws IOException - If the updates can't be written to the journal
+     */
+    public synchronized void applyBatch(Map<Integer, T> updates) throws IOException {
+        if (failed) {
+            throw new IllegalStateException("Journal failed to roll back a write, it has to be recovered");
+        }
+        //validate before writing, a record that can't be applied would fail every later recovery
+        for (Integer index : updates.keySet()) {
+            if (index == null || index < 0 || index >= tree.getLeafCount()) {
+                throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (tree.getLeafCount() - 1));
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        Map<Integer, byte[]> encoded = new LinkedHashMap<>();
+        int payloadLength = 0;
+        for (Map.Entry<Integer, T> update : updates.entrySet()) {
+            byte[] bytes = codec.encode(update.getValue());
+            encoded.put(update.getKey(), bytes);
+            payloadLength += UPDATE_OVERHEAD + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + payloadLength);
+        buffer.putInt(encoded.size());
+        buffer.putInt(payloadLength);
+        for (Map.Entry<Integer, byte[]> update : encoded.entrySet()) {
+            buffer.putInt(update.getKey());
+            buffer.putInt(update.getValue().length);
+            buffer.put(update.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        long start = journal.position();
+        try {
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            //a record left behind would be replayed by a later recovery, even though its batch was never applied
+            try {
+                journal.truncate(start);
+                journal.position(start);
+            } catch (IOException truncateException) {
+                failed = true;
+                e.addSuppressed(truncateException);
+            }
+            throw e;
+        }
+        tree.applyBatch(updates);
+    }
+
+    /**
+     * Writes a new snapshot of the tree and empties the journal. A crash in between leaves the new snapshot
+     * and the old journal, which is fine, replaying updates already in the snapshot gives the same tree
+     * @throws IOException - If the files can't be written
+     */
+    public synchronized void compact() throws IOException {
+        writeSnapshot(directory, tree, codec, hashCodec);
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+    }
+
+    /**
+     * Compacts once the journal is bigger than the snapshot, at which point replaying it at recovery
+     * costs about as much as loading the snapshot
+     * @return - True if the journal was compacted
+     * @throws IOException - If the files can't be written or read
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (journal.size() <= Files.size(directory.resolve(SNAPSHOT_FILE))) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Gets the size of the journal
+     * @return - The size in bytes
+     * @throws IOException - If the size can't be read
+     */
+    public long getJournalSize() throws IOException {
+        return journal.size();
+    }
+
+    /**
+     * Closes the journal file. Every update applied so far is already durable
+     * @throws IOException - If the file can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    private static <V extends Comparable<V>, T extends Hashable<V>> void writeSnapshot(Path directory, MerkleTree<V, T> tree,
+                                                                                      JournalCodec<T> codec,
+                                                                                      JournalCodec<V> hashCodec) throws IOException {
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        Path tempFile = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile.toFile());
+             CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+             DataOutputStream out = new DataOutputStream(checkedOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tree.getFanout());
+            out.writeInt(tree.getLeafCount());
+            for (int i = 0; i < tree.getLeafCount(); i++) {
+                writeBytes(out, codec.encode(tree.getLeafData(i)));
+            }
+            List<Node<V>> nodes = internalNodes(tree);
+            out.writeInt(nodes.size());
+            for (Node<V> node : nodes) {
+                writeBytes(out, hashCodec.encode(node.hash()));
+            }
+            out.writeLong(checkedOut.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //the rename is only durable once the directory holding the file is
+        DirectorySnapshot.forceDirectory(directory);
+    }
+
+    /**
+     * The internal nodes of the tree, level by level from the root down and from left to right. The shape of
+     * a tree only depends on its leaf count and fanout, so a rebuilt tree lists its nodes in the same order
+     */
+    private static <V extends Comparable<V>> List<Node<V>> internalNodes(MerkleTree<V, ?> tree) {
+        List<Node<V>> nodes = new ArrayList<>();
+        if (tree.getRoot() != null) {
+            nodes.add(tree.getRoot());
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            for (AbstractNode<V> child : nodes.get(i).getChildren()) {
+                if (child instanceof Node<?>) {
+                    nodes.add((Node<V>) child);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid entry length " + length + " in tree snapshot file");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the journal records into updates, later updates of a leaf replacing earlier ones
+     * @return - The length of the journal up to the last valid record
+     */
+    private static <T> long readJournal(Path journalFile, int leafCount, JournalCodec<T> codec,
+                                        Map<Integer, T> updates) throws IOException {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        long size = Files.size(journalFile);
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (size - position >= RECORD_OVERHEAD) {
+                int count = in.readInt();
+                int payloadLength = in.readInt();
+                if (count < 0 || payloadLength < 0 || payloadLength > size - position - RECORD_OVERHEAD) {
+                    break;
+                }
+                byte[] record = new byte[8 + payloadLength];
+                ByteBuffer.wrap(record).putInt(count).putInt(payloadLength);
+                in.readFully(record, 8, payloadLength);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.wrap(record, 8, payloadLength);
+                for (int i = 0; i < count; i++) {
+                    int index = payload.getInt();
+                    byte[] bytes = new byte[payload.getInt()];
+                    payload.get(bytes);
+                    if (index < 0 || index >= leafCount) {
+                        throw new IOException("Journal updates leaf " + index + " but the snapshot has " + leafCount + " leafs");
+                    }
+                    updates.put(index, codec.decode(bytes));
+                }
+                position += RECORD_OVERHEAD + payloadLength;
+            }
+        }
+        return position;
+    }
+}
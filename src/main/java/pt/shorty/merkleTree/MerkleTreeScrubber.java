@@ -0,0 +1,397 @@
+package pt.shorty.merkleTree;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Verifies, a little at a time, that a tree still matches the underlying data, for trees whose hashes are cached
+ * or persisted and could have gone stale or been corrupted.
+ * Each pass walks the tree in post order: every leaf hash is compared with the hash the {@link LeafSource} computes
+ * out of the data, and every internal node hash is recomputed out of its children and compared with the cached one.
+ * The walk is resumable, {@link #scrub(int)} checks up to a number of hashes and returns, and {@link #start(int)}
+ * spreads the checks on a background thread at a max number of hashes per second, so a full check doesn't spike CPU.
+ * Mismatches are reported as ranges of leafs, see {@link #getCorruptedRanges()}, each range once however many passes
+ * find it. A node is only reported when its own hash is wrong, not when it's wrong because of a node below it.
+ * When repairing, wrong hashes are fixed in place: internal nodes and leafs created out of a precomputed hash take the
+ * right hash, leafs with data can't be fixed by the tree (the data itself disagrees with the source) and are only reported.
+ * The tree can be updated through {@link MerkleTree#applyBatch(Map)} while a pass is in progress: each step holds the
+ * lock of the tree, which batches take as well, and a pass the tree was updated under is dropped and started over by
+ * the next step, so a pass never checks, nor repairs, a node against child hashes gathered before the update.
+ * Nodes changed directly, not through {@link MerkleTree#applyBatch(Map)}, are not noticed.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class MerkleTreeScrubber<V extends Comparable<V>, T extends Hashable<V>> implements AutoCloseable {
+
+    /**
+     * The interval between background steps
+     */
+    private static final long TICK_MILLIS = 100;
+
+    private final MerkleTree<V, T> tree;
+
+    private final LeafSource<V> leafSource;
+
+    private final boolean repair;
+
+    /**
+     * The nodes of the current pass whose children are not all checked yet, the deepest on top
+     */
+    private final Deque<Frame<V>> pending = new ArrayDeque<>();
+
+    /**
+     * The ranges found so far, each once, in the order they were first found
+     */
+    private final Set<CorruptedRange> corruptedRanges = new LinkedHashSet<>();
+
+    /**
+     * The time in millis, for the background throttling
+     */
+    private final LongSupplier clock;
+
+    private final Sleeper sleeper;
+
+    /**
+     * The index of the next leaf of the current pass
+     */
+    private int nextLeaf;
+
+    /**
+     * The modification count of the tree when the current pass started
+     */
+    private long passModificationCount;
+
+    private long completedPasses;
+
+    private long restartedPasses;
+
+    private long checkedHashes;
+
+    private Thread worker;
+
+    /**
+     * Creates a new scrubber, nothing is checked until {@link #scrub(int)} or {@link #start(int)} are called
+     * @param tree - The tree to verify
+     * @param leafSource - Computes the hash each leaf should have out of the underlying data
+     * @param repair - If wrong hashes are fixed in place, only allowed for trees that are not read only
+     */
+    public MerkleTreeScrubber(MerkleTree<V, T> tree, LeafSource<V> leafSource, boolean repair) {
+        this(tree, leafSource, repair, () -> System.nanoTime() / 1_000_000, Thread::sleep);
+    }
+
+    MerkleTreeScrubber(MerkleTree<V, T> tree, LeafSource<V> leafSource, boolean repair, LongSupplier clock, Sleeper sleeper) {
+        if (repair && tree.isReadOnly()) {
+            throw new IllegalArgumentException("Invalid tree. A read only tree can't be repaired");
+        }
+        this.tree = tree;
+        this.leafSource = leafSource;
+        this.repair = repair;
+        this.clock = clock;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Continues the current pass, or starts a new one, checking up to the supplied number of hashes.
+     * If the tree was updated since the current pass started, the pass is started over
+     * @param maxHashes - The max number of leaf and node hashes to check
+     * @return - The number of hashes checked, less than max only if the tree has no leafs
+     */
+    public synchronized int scrub(int maxHashes) {
+        synchronized (tree) {
+            if (!pending.isEmpty() && tree.getModificationCount() != passModificationCount) {
+                //the child hashes gathered so far may predate the update
+                pending.clear();
+                restartedPasses++;
+            }
+            return scrubLocked(maxHashes);
+        }
+    }
+
+    /**
+     * Scrubs holding the lock of the tree, so no batch is applied in between
+     */
+    private int scrubLocked(int maxHashes) {
+        int checked = 0;
+        while (checked < maxHashes) {
+            if (pending.isEmpty()) {
+                if (tree.getRoot() == null) {
+                    return checked;
+                }
+                nextLeaf = 0;
+                passModificationCount = tree.getModificationCount();
+                pending.push(new Frame<>(tree.getRoot(), 0));
+            }
+            Frame<V> frame = pending.peek();
+            List<AbstractNode<V>> children = frame.node.getChildren();
+            if (frame.nextChild < children.size()) {
+                pending.push(new Frame<>(children.get(frame.nextChild++), nextLeaf));
+                continue;
+            }
+            pending.pop();
+            if (frame.node instanceof LeafNode) {
+                checkLeaf(LeafNode.cast(frame.node));
+            } else {
+                checkNode(frame);
+            }
+            checked++;
+            checkedHashes++;
+            if (pending.isEmpty()) {
+                completedPasses++;
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * Starts scrubbing on a background thread, pass after pass, until the scrubber is closed
+     * @param hashesPerSecond - The max number of hashes checked per second
+     */
+    public synchronized void start(int hashesPerSecond) {
+        if (hashesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + hashesPerSecond + ". Rate must be greater than 0");
+        }
+        if (worker != null) {
+            throw new IllegalStateException("Scrubber is already started");
+        }
+        worker = new Thread(() -> scrubThrottled(hashesPerSecond), "merkle-scrubber");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Scrubs a tick's worth of hashes every tick, at a fixed rate, until interrupted
+     */
+    private void scrubThrottled(int hashesPerSecond) {
+        double hashesPerTick = hashesPerSecond * TICK_MILLIS / 1000.0;
+        double budget = 0;
+        long nextTick = clock.getAsLong();
+        while (!Thread.currentThread().isInterrupted()) {
+            //rates below one hash per tick accumulate over several ticks
+            budget += hashesPerTick;
+            int hashes = (int) budget;
+            budget -= hashes;
+            if (hashes > 0) {
+                scrub(hashes);
+            }
+            nextTick += TICK_MILLIS;
+            long delay = nextTick - clock.getAsLong();
+            try {
+                if (delay > 0) {
+                    sleeper.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread, if started, and waits for it to finish its current step.
+     * The current pass can still be continued with {@link #scrub(int)}
+     */
+    @Override
+    public void close() {
+        Thread stopped;
+        synchronized (this) {
+            stopped = worker;
+            worker = null;
+        }
+        if (stopped == null) {
+            return;
+        }
+        stopped.interrupt();
+        //not holding the lock, the step being waited for needs it
+        boolean interrupted = false;
+        while (stopped.isAlive()) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the ranges found corrupted so far, by every pass. A range found again by a later pass is not repeated
+     * @return - A copy of the ranges, in the order they were first found
+     */
+    public synchronized List<CorruptedRange> getCorruptedRanges() {
+        return new ArrayList<>(corruptedRanges);
+    }
+
+    /**
+     * Gets the number of passes that went through the whole tree
+     * @return - The number of passes
+     */
+    public synchronized long getCompletedPasses() {
+        return completedPasses;
+    }
+
+    /**
+     * Gets the number of passes dropped and started over because the tree was updated under them
+     * @return - The number of passes
+     */
+    public synchronized long getRestartedPasses() {
+        return restartedPasses;
+    }
+
+    /**
+     * Gets the number of hashes checked so far, by every pass
+     * @return - The number of hashes
+     */
+    public synchronized long getCheckedHashes() {
+        return checkedHashes;
+    }
+
+    private void checkLeaf(LeafNode<V, T> leafNode) {
+        int index = nextLeaf++;
+        V expected = leafSource.leafHash(index);
+        V hash = leafNode.hash();
+        boolean changed = false;
+        if (expected.compareTo(hash) != 0) {
+            boolean repaired = repair && leafNode.getData() == null;
+            if (repaired) {
+                leafNode.setHash(expected);
+                hash = expected;
+                changed = true;
+            }
+            corruptedRanges.add(new CorruptedRange(index, index + 1, 0, repaired));
+        }
+        //the parent is checked against the hash the leaf has now, so an unrepaired leaf doesn't flag its ancestors
+        finish(hash, changed);
+    }
+
+    private void checkNode(Frame<V> frame) {
+        Node<V> node = (Node<V>) frame.node;
+        V computed = node.hashOf(frame.childHashes);
+        boolean changed = computed.compareTo(node.hash()) != 0;
+        if (changed && !frame.childChanged) {
+            corruptedRanges.add(new CorruptedRange(frame.firstLeaf, nextLeaf, node.getLevel(), repair));
+        }
+        if (changed && repair) {
+            node.setHash(computed);
+        }
+        finish(computed, changed || frame.childChanged);
+    }
+
+    private void finish(V hash, boolean changed) {
+        Frame<V> parent = pending.peek();
+        if (parent != null) {
+            parent.childHashes.add(hash);
+            parent.childChanged |= changed;
+        }
+    }
+
+    /**
+     * Waits between background steps, {@link Thread#sleep(long)} outside of tests
+     */
+    @FunctionalInterface
+    interface Sleeper {
+
+        /**
+         * Waits for the supplied time
+         * @param millis - The time to wait, in millis
+         * @throws InterruptedException - If the scrubber is closed while waiting
+         */
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private static final class Frame<V extends Comparable<V>> {
+
+        private final AbstractNode<V> node;
+
+        /**
+         * The index of the first leaf below the node
+         */
+        private final int firstLeaf;
+
+        private final List<V> childHashes = new ArrayList<>();
+
+        private int nextChild;
+
+        /**
+         * If the hash of any child differs from its cached hash, in which case the cached hash
+         * of the node is expected to be wrong as well
+         */
+        private boolean childChanged;
+
+        private Frame(AbstractNode<V> node, int firstLeaf) {
+            this.node = node;
+            this.firstLeaf = firstLeaf;
+        }
+    }
+
+    /**
+     * A range of leafs below a wrong hash. Ranges are equal when they cover the same leafs at the same level
+     */
+    public static class CorruptedRange {
+
+        private final int fromLeaf;
+
+        private final int toLeaf;
+
+        private final int level;
+
+        private final boolean repaired;
+
+        CorruptedRange(int fromLeaf, int toLeaf, int level, boolean repaired) {
+            this.fromLeaf = fromLeaf;
+            this.toLeaf = toLeaf;
+            this.level = level;
+            this.repaired = repaired;
+        }
+
+        /**
+         * Gets the index of the first leaf of the range
+         * @return - The index, inclusive
+         */
+        public int getFromLeaf() {
+            return fromLeaf;
+        }
+
+        /**
+         * Gets the index after the last leaf of the range
+         * @return - The index, exclusive
+         */
+        public int getToLeaf() {
+            return toLeaf;
+        }
+
+        /**
+         * Gets the level of the wrong hash, 0 for a leaf
+         * @return - The level
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Checks if the wrong hash was fixed
+         * @return - True if it was repaired
+         */
+        public boolean isRepaired() {
+            return repaired;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CorruptedRange range = (CorruptedRange) o;
+            return fromLeaf == range.fromLeaf && toLeaf == range.toLeaf && level == range.level;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fromLeaf, toLeaf, level);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + fromLeaf + ", " + toLeaf + ") at level " + level + (repaired ? ", repaired" : "");
+        }
+    }
+}
@@ -4,19 +4,28 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * A generic node in the merkel tree. This node holds both a left and right child and can
- * be at any level. With the exception of the leaf node, all other nodes in a merkel tree are of
+ * A generic node in the merkel tree. This node holds up to fanout children (a left and right child
+ * in a binary tree) and can be at any level. With the exception of the leaf node, all other nodes in a merkel tree are of
  * type {@link Node}
  * @param <V> - The hash type
  */
 public class Node<V extends Comparable<V>> extends AbstractNode<V> {
 
     private Node<V> parent;
-    private AbstractNode<V> rightChild;
-    private AbstractNode<V> leftChild;
+
+    /**
+     * The children of this node, ordered from left to right
+     */
+    private final List<AbstractNode<V>> children = new ArrayList<>(2);
 
     private HashBuilder<V> hashBuilder;
 
+    /**
+     * The cached hash of this node. Computing the hash of a node requires the hash of
+     * every node below it, so it's computed once and kept until a child of this node (or of any node below it) changes
+     */
+    private V hash;
+
     /**
      * Creates a new node at the specified level with the supplied hashbuilder
      * @param level - The level that this node is at
@@ -32,52 +41,101 @@ public class Node<V extends Comparable<V>> extends AbstractNode<V> {
      */
     @Override
     V hash() {
-       List<V> hashList = new ArrayList<>();
-       if (leftChild != null){
-            hashList.add(leftChild.hash());
-       }
-       if (rightChild != null){
-            hashList.add(rightChild.hash());
+        if (hash == null) {
+            hash = computeHash();
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the hash of this node out of the hashes of its children, without
+     * looking at the cached value of this node
+     * @return - The hash of the node
+     */
+    V computeHash() {
+        List<V> hashList = new ArrayList<>(children.size());
+        for (AbstractNode<V> child : children) {
+            hashList.add(child.hash());
         }
         return hashBuilder.hash(hashList);
     }
 
     /**
-     * {@inheritDoc}
+     * Computes a hash out of the supplied child hashes, with the hash builder of this node
+     * @param childHashes - The hashes of the children, from left to right
+     * @return - The hash
      */
-    @Override
-    boolean isLeaf() {
-        return false;
+    V hashOf(List<V> childHashes) {
+        return hashBuilder.hash(childHashes);
+    }
+
+    /**
+     * Replaces the cached hash of this node, the caller vouches it's the hash of the current children.
+     * The cached hashes of the ancestors are not touched
+     * @param hash - The hash
+     */
+    void setHash(V hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * Recomputes and caches the hash of this node. The children hashes are
+     * expected to be up-to-date, only this node is rehashed
+     */
+    void rehash() {
+        hash = computeHash();
+    }
+
+    /**
+     * Drops the cached hash of this node and of all its ancestors, so that they are
+     * recomputed on the next call to {@link #hash()}
+     */
+    void invalidateHash() {
+        Node<V> node = this;
+        while (node != null) {
+            node.hash = null;
+            node = node.parent;
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean isRight() {
-        if (parent == null){
-            //we are groot
-            return false;
-        }
-        return parent.isRightNode(this);
+    boolean isLeaf() {
+        return false;
     }
 
     /**
      * Checks if this node is the root node
      * @return - True if this node is the root node
+     * @throws IllegalStateException - If this node is shared between trees, where it may be the root of one and an
+     * inner node of another, see {@link SubtreeInterner}
      */
     public boolean isRootNode(){
+        checkNotSharedForPosition();
         return this.parent == null;
     }
 
 
     /**
-     * Checks if a given node is the right node of this node
+     * Checks if a given node is the left node, the first child, of this node.
+     * Nodes are compared by identity, an equal leaf elsewhere in the tree is not the left node
+     * @param node - The node to check
+     * @return - True if it's the left node, false otherwise
+     */
+    protected boolean isLeftNode(AbstractNode<V> node){
+        return node != null && getLeftChild() == node;
+    }
+
+    /**
+     * Checks if a given node is the right node, the last child, of this node.
+     * Nodes are compared by identity, an equal leaf elsewhere in the tree is not the right node
      * @param node - The node to check
      * @return - True if it's the right node, false otherwise
      */
     protected boolean isRightNode(AbstractNode<V> node){
-        return this.rightChild.equals(node);
+        return node != null && getRightChild() == node;
     }
 
     /**
@@ -85,41 +143,124 @@ public class Node<V extends Comparable<V>> extends AbstractNode<V> {
      * @param parent - The parent node
      */
     public void setParent(Node<V> parent) {
+        checkNotShared();
         this.parent = parent;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Node<V> getParent() {
+        return parent;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     AbstractNode<V> getLeftChild() {
-        return leftChild;
+        return children.isEmpty() ? null : children.get(0);
     }
 
     /**
      * {@inheritDoc}
+     *
+     * With a fanout greater than 2 this is the last child
      */
     @Override
     AbstractNode<V> getRightChild() {
-        return rightChild;
+        return children.size() < 2 ? null : children.get(children.size() - 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    List<AbstractNode<V>> getChildren() {
+        return children;
     }
 
     /**
-     *Sets the right child of this node
+     *Sets the right child of this node, which is the last child. With a single child it's added after it,
+     * otherwise it replaces the last child. Use {@link #setChild(int, AbstractNode)} to set a child by position
      * @param rightChild - the right child to set
+     * @throws IllegalStateException - If this node has no left child yet
      */
     public void setRightChild(AbstractNode<V> rightChild) {
-        this.rightChild = rightChild;
-        this.rightChild.setParent(this);
+        if (children.isEmpty()) {
+            throw new IllegalStateException("Node at level " + getLevel() + " has no left child, it must be set before the right one");
+        }
+        setChild(Math.max(1, children.size() - 1), rightChild);
     }
 
     /**
-     *Sets the left child of this node
+     *Sets the left child of this node, which is the first child
      * @param leftChild - the left child to set
      */
     public void setLeftChild(AbstractNode<V> leftChild) {
-        this.leftChild = leftChild;
-        this.leftChild.setParent(this);
+        setChild(0, leftChild);
+    }
+
+    /**
+     * Adds a child to the right of the current children of this node
+     * @param child - The child to add
+     */
+    public void addChild(AbstractNode<V> child) {
+        setChild(children.size(), child);
+    }
+
+    /**
+     * Sets the child at the supplied position, replacing the current one
+     * @param index - The position of the child, from 0 up to the current number of children
+     * @param child - The child to set
+     */
+    public void setChild(int index, AbstractNode<V> child) {
+        if (index < 0 || index > children.size()) {
+            throw new IllegalArgumentException("Invalid child index " + index + ". Index must be between 0 and " + children.size());
+        }
+        checkNotShared();
+        //a shared child can't take this node as its parent
+        child.checkNotShared();
+        if (index == children.size()) {
+            children.add(child);
+        } else {
+            children.set(index, child);
+        }
+        child.setParent(this);
+        invalidateHash();
+    }
+
+    /**
+     * Replaces all the children of this node at once. Unlike adding them one by one with
+     * {@link #addChild(AbstractNode)}, the ancestors are only invalidated once
+     * @param newChildren - The children, from left to right
+     */
+    void setChildren(List<? extends AbstractNode<V>> newChildren) {
+        checkNotShared();
+        for (AbstractNode<V> child : newChildren) {
+            child.checkNotShared();
+        }
+        for (AbstractNode<V> child : children) {
+            child.setParent(null);
+        }
+        children.clear();
+        for (AbstractNode<V> child : newChildren) {
+            children.add(child);
+            child.setParent(this);
+        }
+        invalidateHash();
+    }
+
+    /**
+     * Swaps the child at the supplied position for an equal one, with the same hash, shared with other trees.
+     * The cached hash of this node stays valid, so unlike {@link #setChild(int, AbstractNode)} it's not cleared,
+     * and the parent of the shared child is left untouched
+     * @param index - The position of the child
+     * @param child - The equal child
+     */
+    void shareChild(int index, AbstractNode<V> child) {
+        children.set(index, child);
     }
 
     /**
@@ -127,6 +268,8 @@ public class Node<V extends Comparable<V>> extends AbstractNode<V> {
      * @param hashBuilder - The hash builder to set
      */
     public void setHashBuilder(HashBuilder<V> hashBuilder){
+        checkNotShared();
         this.hashBuilder = hashBuilder;
+        invalidateHash();
     }
 }
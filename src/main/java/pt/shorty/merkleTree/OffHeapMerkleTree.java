@@ -0,0 +1,353 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A merkle tree of {@link Digest} hashes that keeps every node hash off heap, for trees of tens of millions of leafs.
+ * {@link MerkleTree} holds a node object and a hash object per node, which the garbage collector has to trace on every
+ * full collection. This tree holds no object per node: all hashes live in a single arena of direct buffers, level after
+ * level, the children of a node being next to each other, so the tree costs the GC a handful of objects whatever its size.
+ * The tree has the same shape and produces the same root hash as a {@link MerkleTree} of the same leaf digests, fanout
+ * and {@link DigestHashBuilder}, and like it, only the paths above updated leafs are rehashed.
+ * Hashes are read through fixed width views of the arena ({@link #getHashView(int, int)}) or copied into a caller
+ * buffer ({@link #copyHash(int, int, ByteBuffer)}), {@link Digest} objects are only created on request.
+ * {@link #close()} does not free the off heap memory: Java 17 has no supported way to free a direct buffer, so close
+ * only drops the tree's references to the arena and the memory is returned when the garbage collector collects the
+ * buffers, after the last view of them is unreachable. Every method throws {@link IllegalStateException} once closed.
+ */
+public class OffHeapMerkleTree implements AutoCloseable {
+
+    /**
+     * Max size of each direct buffer of the arena, a single direct buffer can't hold more than 2GB
+     */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    /**
+     * Minimum number of nodes in a level before they are hashed in parallel
+     */
+    private static final int PARALLEL_REHASH_THRESHOLD = 64;
+
+    private final DigestHashBuilder hashBuilder;
+
+    private final int digestLength;
+
+    private final int fanout;
+
+    /**
+     * The number of digests per segment, a multiple of fanout
+     */
+    private final int segmentDigests;
+
+    /**
+     * The position in the arena of the first digest of each level, in digests. Each level starts at a multiple of
+     * fanout, so the children of a node never straddle two segments
+     */
+    private final long[] levelStarts;
+
+    /**
+     * The number of nodes of each level, level 0 being the leafs and the last level the root
+     */
+    private final int[] levelCounts;
+
+    private ByteBuffer[] segments;
+
+    /**
+     * Creates a new tree with the default fanout
+     * @param leafDigests - The leaf digests, back to back, each of the hash builder digest length.
+     *                    Read from the position to the limit of the buffer, which is left untouched
+     * @param hashBuilder - Builds the hashes of the internal nodes
+     */
+    public OffHeapMerkleTree(ByteBuffer leafDigests, DigestHashBuilder hashBuilder) {
+        this(leafDigests, hashBuilder, MerkleTree.DEFAULT_FANOUT);
+    }
+
+    /**
+     * Creates a new tree
+     * @param leafDigests - The leaf digests, back to back, each of the hash builder digest length.
+     *                    Read from the position to the limit of the buffer, which is left untouched
+     * @param hashBuilder - Builds the hashes of the internal nodes
+     * @param fanout - The max number of children of each internal node, at least 2
+     */
+    public OffHeapMerkleTree(ByteBuffer leafDigests, DigestHashBuilder hashBuilder, int fanout) {
+        this(leafDigests, hashBuilder, fanout, MAX_SEGMENT_BYTES);
+    }
+
+    OffHeapMerkleTree(ByteBuffer leafDigests, DigestHashBuilder hashBuilder, int fanout, int maxSegmentBytes) {
+        if (fanout < 2) {
+            throw new IllegalArgumentException("Invalid fanout " + fanout + ". Fanout must be at least 2");
+        }
+        this.hashBuilder = hashBuilder;
+        this.digestLength = hashBuilder.getDigestLength();
+        this.fanout = fanout;
+        if (leafDigests.remaining() % digestLength != 0) {
+            throw new IllegalArgumentException("Invalid digests buffer of " + leafDigests.remaining()
+                    + " bytes. Size must be a multiple of the digest length " + digestLength);
+        }
+        this.segmentDigests = maxSegmentBytes / digestLength / fanout * fanout;
+        if (segmentDigests == 0) {
+            throw new IllegalArgumentException("Invalid segment size " + maxSegmentBytes + ". Segment must fit at least " + fanout + " digests");
+        }
+        this.levelCounts = levelCounts(leafDigests.remaining() / digestLength, fanout);
+        this.levelStarts = new long[levelCounts.length];
+        long arenaDigests = 0;
+        for (int level = 0; level < levelCounts.length; level++) {
+            levelStarts[level] = arenaDigests;
+            arenaDigests = (arenaDigests + levelCounts[level] + fanout - 1) / fanout * fanout;
+        }
+        this.segments = allocate(arenaDigests);
+
+        ByteBuffer source = leafDigests.duplicate();
+        for (int index = 0; index < getLeafCount(); index++) {
+            source.limit(source.position() + digestLength);
+            slice(0, index).put(source);
+        }
+        for (int level = 1; level < levelCounts.length; level++) {
+            int parentLevel = level;
+            IntStream nodes = IntStream.range(0, levelCounts[level]);
+            if (levelCounts[level] >= PARALLEL_REHASH_THRESHOLD) {
+                nodes = nodes.parallel();
+            }
+            nodes.forEach(index -> rehash(parentLevel, index));
+        }
+    }
+
+    /**
+     * The node count of each level, the same shape {@link MerkleTree} builds: levels are condensed by fanout
+     * until at most fanout nodes are left, which become the children of the root
+     */
+    private static int[] levelCounts(int leafCount, int fanout) {
+        if (leafCount == 0) {
+            return new int[]{0};
+        }
+        int[] counts = new int[34];
+        counts[0] = leafCount;
+        int levels = 1;
+        do {
+            counts[levels] = (counts[levels - 1] + fanout - 1) / fanout;
+            levels++;
+        } while (counts[levels - 1] > fanout);
+        counts[levels++] = 1;
+        return Arrays.copyOf(counts, levels);
+    }
+
+    private ByteBuffer[] allocate(long arenaDigests) {
+        int segmentCount = (int) ((arenaDigests + segmentDigests - 1) / segmentDigests);
+        ByteBuffer[] buffers = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long digests = Math.min(segmentDigests, arenaDigests - (long) i * segmentDigests);
+            buffers[i] = ByteBuffer.allocateDirect((int) digests * digestLength);
+        }
+        return buffers;
+    }
+
+    /**
+     * Gets the number of leafs of this tree
+     * @return - The number of leafs
+     */
+    public int getLeafCount() {
+        checkOpen();
+        return levelCounts[0];
+    }
+
+    /**
+     * Gets the level of the root, same as {@link MerkleTree#getTreeDepth()}
+     * @return - The depth or -1 if this tree has no leafs
+     */
+    public int getTreeDepth() {
+        return getLeafCount() == 0 ? -1 : levelCounts.length - 1;
+    }
+
+    /**
+     * Gets the number of nodes of a level
+     * @param level - The level, 0 being the leafs
+     * @return - The number of nodes
+     */
+    public int getNodeCount(int level) {
+        checkOpen();
+        checkLevel(level);
+        return levelCounts[level];
+    }
+
+    /**
+     * Gets the length of the digests of this tree
+     * @return - The length in bytes
+     */
+    public int getDigestLength() {
+        checkOpen();
+        return digestLength;
+    }
+
+    /**
+     * Gets the off heap memory held by this tree
+     * @return - The size of the arena in bytes
+     */
+    public long getArenaBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : checkOpen()) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets a read only view of the hash of a node. Nothing is copied, the view reflects later updates of the node
+     * @param level - The level of the node, 0 being the leafs
+     * @param index - The index of the node in the level, from left to right starting at 0
+     * @return - A buffer with the digest between position 0 and the limit
+     */
+    public ByteBuffer getHashView(int level, int index) {
+        checkOpen();
+        checkIndex(level, index);
+        return slice(level, index).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the hash of a node into the supplied buffer, at its position, which is moved past the digest.
+     * Unlike {@link #getHashView(int, int)} the copy doesn't reflect later updates of the node
+     * @param level - The level of the node, 0 being the leafs
+     * @param index - The index of the node in the level, from left to right starting at 0
+     * @param dst - The buffer to copy to, with at least digest length bytes remaining
+     */
+    public void copyHash(int level, int index, ByteBuffer dst) {
+        checkOpen();
+        checkIndex(level, index);
+        if (dst.remaining() < digestLength) {
+            throw new IllegalArgumentException("Invalid buffer with " + dst.remaining() + " bytes remaining. Buffer must have at least "
+                    + digestLength + " bytes remaining");
+        }
+        dst.put(slice(level, index));
+    }
+
+    /**
+     * Gets a read only view of the root hash, see {@link #getHashView(int, int)}
+     * @return - The view or null if this tree has no leafs
+     */
+    public ByteBuffer getRootHashView() {
+        if (getLeafCount() == 0) {
+            return null;
+        }
+        return getHashView(levelCounts.length - 1, 0);
+    }
+
+    /**
+     * Copies the root hash into a new {@link Digest}
+     * @return - The root hash or null if this tree has no leafs
+     */
+    public Digest getRootHash() {
+        ByteBuffer view = getRootHashView();
+        return view == null ? null : Digest.read(view, digestLength);
+    }
+
+    /**
+     * Copies the hash of a leaf into a new {@link Digest}
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @return - The hash of the leaf
+     */
+    public Digest getLeafHash(int index) {
+        return Digest.read(getHashView(0, index), digestLength);
+    }
+
+    /**
+     * Replaces the hash of a single leaf and rehashes the path above it
+     * @param index - The index of the leaf, from left to right starting at 0
+     * @param hash - The new hash of the leaf
+     */
+    public void setLeafHash(int index, Digest hash) {
+        applyBatch(Map.of(index, hash));
+    }
+
+    /**
+     * Replaces the hashes of several leafs and rehashes every internal node above them exactly once,
+     * level by level from the bottom up, same as {@link MerkleTree#applyBatch(Map)}
+     * @param updates - The new hash for each leaf, keyed by the index of the leaf
+     */
+    public void applyBatch(Map<Integer, Digest> updates) {
+        checkOpen();
+        for (Map.Entry<Integer, Digest> update : updates.entrySet()) {
+            Integer index = update.getKey();
+            if (index == null || index < 0 || index >= getLeafCount()) {
+                throw new IllegalArgumentException("Invalid leaf index " + index + ". Index must be between 0 and " + (getLeafCount() - 1));
+            }
+            if (update.getValue().length() != digestLength) {
+                throw new IllegalArgumentException("Invalid digest length " + update.getValue().length() + ". Length must be " + digestLength);
+            }
+        }
+        int[] dirty = new int[updates.size()];
+        int dirtyCount = 0;
+        for (Map.Entry<Integer, Digest> update : updates.entrySet()) {
+            update.getValue().writeTo(slice(0, update.getKey()));
+            dirty[dirtyCount++] = update.getKey();
+        }
+        for (int level = 1; level < levelCounts.length && dirtyCount > 0; level++) {
+            //parents of sorted children are sorted, so duplicates are next to each other
+            Arrays.sort(dirty, 0, dirtyCount);
+            int parentCount = 0;
+            for (int i = 0; i < dirtyCount; i++) {
+                int parent = dirty[i] / fanout;
+                if (parentCount == 0 || dirty[parentCount - 1] != parent) {
+                    dirty[parentCount++] = parent;
+                }
+            }
+            dirtyCount = parentCount;
+            int parentLevel = level;
+            IntStream nodes = Arrays.stream(dirty, 0, dirtyCount);
+            if (dirtyCount >= PARALLEL_REHASH_THRESHOLD) {
+                nodes = nodes.parallel();
+            }
+            nodes.forEach(index -> rehash(parentLevel, index));
+        }
+    }
+
+    /**
+     * Drops the references of this tree to the arena, which doesn't free the memory, see the class doc.
+     * The tree can't be used afterwards, views already handed out keep their segment alive
+     */
+    @Override
+    public void close() {
+        segments = null;
+    }
+
+    private void rehash(int level, int index) {
+        int firstChild = index * fanout;
+        int childCount = Math.min(fanout, levelCounts[level - 1] - firstChild);
+        ByteBuffer children = slice(level - 1, firstChild);
+        //children are contiguous and never straddle segments, see levelStarts
+        children.limit(childCount * digestLength);
+        hashBuilder.digest(children, slice(level, index));
+    }
+
+    /**
+     * A buffer over the digest of a node, with its own position and limit, so concurrent rehashes don't interfere
+     */
+    private ByteBuffer slice(int level, int index) {
+        ByteBuffer[] buffers = checkOpen();
+        long position = levelStarts[level] + index;
+        ByteBuffer segment = buffers[(int) (position / segmentDigests)];
+        int offset = (int) (position % segmentDigests) * digestLength;
+        return segment.slice(offset, segment.capacity() - offset).limit(digestLength);
+    }
+
+    private ByteBuffer[] checkOpen() {
+        ByteBuffer[] buffers = segments;
+        if (buffers == null) {
+            throw new IllegalStateException("Off heap tree is closed");
+        }
+        return buffers;
+    }
+
+    private void checkLevel(int level) {
+        if (level < 0 || level >= levelCounts.length) {
+            throw new IllegalArgumentException("Invalid level " + level + ". Level must be between 0 and " + (levelCounts.length - 1));
+        }
+    }
+
+    private void checkIndex(int level, int index) {
+        checkLevel(level);
+        if (index < 0 || index >= levelCounts[level]) {
+            throw new IllegalArgumentException("Invalid node index " + index + ". Index must be between 0 and " + (levelCounts[level] - 1));
+        }
+    }
+}
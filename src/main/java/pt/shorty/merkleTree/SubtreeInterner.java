@@ -0,0 +1,151 @@
+package pt.shorty.merkleTree;
+
+import java.util.*;
+
+/**
+ * Shares identical subtrees between trees, so that many largely identical trees (replicas of the same data)
+ * hold each distinct node once. Two subtrees are identical when their roots sit at the same level and have the same
+ * hash, which, as with diffs, requires good hash collision avoidance on V.
+ * {@link #intern(MerkleTree)} walks a tree from the root down and replaces every subtree already in the pool with
+ * the pooled one, so a tree identical to one already interned costs a single lookup, and diffs between interned trees
+ * skip shared nodes by identity. Shared nodes have no single parent, so interned trees are read only,
+ * {@link MerkleTree#applyBatch(Map)} throws, and shared nodes can't be changed either, their setters throw
+ * {@link IllegalStateException} (see {@link AbstractNode#isShared()}), as do the checks of their position in a tree,
+ * such as {@link Node#isRootNode()}, since the same node can sit anywhere in each tree. To update a tree, rebuild it
+ * and intern the new tree.
+ * Nodes are pooled by level and hash, hashes are compared with {@link Comparable#compareTo(Object)}, so V doesn't
+ * need to implement equals and hashCode.
+ * Pooled nodes are reference counted, by the trees and by the pooled nodes above them, {@link #release(MerkleTree)}
+ * drops the nodes no other interned tree uses.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class SubtreeInterner<V extends Comparable<V>, T extends Hashable<V>> {
+
+    private final Map<Key<V>, PooledNode<V>> pool = new TreeMap<>();
+
+    private final Set<MerkleTree<V, T>> internedTrees = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Shares the nodes of the tree with the trees already interned. The tree is changed in place and becomes read only
+     * @param tree - The tree to intern
+     */
+    public synchronized void intern(MerkleTree<V, T> tree) {
+        if (!internedTrees.add(tree)) {
+            throw new IllegalArgumentException("Invalid tree. Tree is already interned");
+        }
+        Node<V> root = tree.getRoot();
+        if (root == null) {
+            tree.share(null);
+            return;
+        }
+        tree.share((Node<V>) intern(root));
+    }
+
+    /**
+     * Releases the nodes of an interned tree. Nodes still used by other interned trees are kept, the rest leave the pool.
+     * The tree stays read only, its nodes may still be shared
+     * @param tree - The tree to release
+     */
+    public synchronized void release(MerkleTree<V, T> tree) {
+        if (!internedTrees.remove(tree)) {
+            throw new IllegalArgumentException("Invalid tree. Tree is not interned");
+        }
+        if (tree.getRoot() != null) {
+            release(tree.getRoot());
+        }
+    }
+
+    /**
+     * Gets the number of distinct nodes held by the pool
+     * @return - The number of nodes
+     */
+    public synchronized int getPooledNodeCount() {
+        return pool.size();
+    }
+
+    /**
+     * Gets the number of trees interned and not released yet
+     * @return - The number of trees
+     */
+    public synchronized int getTreeCount() {
+        return internedTrees.size();
+    }
+
+    private AbstractNode<V> intern(AbstractNode<V> node) {
+        Key<V> key = new Key<>(node.getLevel(), node.hash());
+        PooledNode<V> pooled = pool.get(key);
+        if (pooled != null) {
+            //the whole subtree is already shared, nothing below needs to be looked at
+            pooled.references++;
+            return pooled.node;
+        }
+        List<AbstractNode<V>> children = node.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            AbstractNode<V> child = children.get(i);
+            AbstractNode<V> shared = intern(child);
+            if (shared != child) {
+                ((Node<V>) node).shareChild(i, shared);
+            }
+        }
+        //a shared node has as many parents as trees using it. Nodes of a released tree interned again already are shared
+        if (!node.isShared()) {
+            node.setParent(null);
+            node.markShared();
+        }
+        pool.put(key, new PooledNode<>(node));
+        return node;
+    }
+
+    private void release(AbstractNode<V> node) {
+        Key<V> key = new Key<>(node.getLevel(), node.hash());
+        PooledNode<V> pooled = pool.get(key);
+        if (pooled == null || pooled.node != node) {
+            throw new IllegalStateException("Node at level " + node.getLevel() + " is not pooled");
+        }
+        if (--pooled.references > 0) {
+            return;
+        }
+        pool.remove(key);
+        for (AbstractNode<V> child : node.getChildren()) {
+            release(child);
+        }
+    }
+
+    /**
+     * Orders nodes by level, then by hash
+     */
+    private static final class Key<V extends Comparable<V>> implements Comparable<Key<V>> {
+
+        private final int level;
+
+        private final V hash;
+
+        private Key(int level, V hash) {
+            this.level = level;
+            this.hash = hash;
+        }
+
+        @Override
+        public int compareTo(Key<V> other) {
+            if (level != other.level) {
+                return Integer.compare(level, other.level);
+            }
+            return hash.compareTo(other.hash);
+        }
+    }
+
+    private static final class PooledNode<V extends Comparable<V>> {
+
+        private final AbstractNode<V> node;
+
+        /**
+         * The number of trees and pooled nodes pointing at this node
+         */
+        private int references = 1;
+
+        private PooledNode(AbstractNode<V> node) {
+            this.node = node;
+        }
+    }
+}
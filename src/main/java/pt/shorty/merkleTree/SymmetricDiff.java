@@ -0,0 +1,102 @@
+package pt.shorty.merkleTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between two trees found in a single traversal of both, see {@link MerkleTree#symmetricDiff(MerkleTree)}.
+ * Leafs are matched by position: a leaf with a different hash than the leaf at the same position of the
+ * other tree is changed, a leaf with no leaf at its position in the other tree is only in its own tree.
+ * Each list is ordered from left to right.
+ * @param <V> - The hash type
+ * @param <T> - The data type
+ */
+public class SymmetricDiff<V extends Comparable<V>, T extends Hashable<V>> {
+
+    private final List<LeafNode<V, T>> onlyInLeft = new ArrayList<>();
+
+    private final List<LeafNode<V, T>> onlyInRight = new ArrayList<>();
+
+    private final List<Change<V, T>> changed = new ArrayList<>();
+
+    SymmetricDiff() {
+    }
+
+    /**
+     * Gets the leafs of the left tree (the one diff was called on) with no leaf at the same position of the right tree
+     * @return - The leafs
+     */
+    public List<LeafNode<V, T>> getOnlyInLeft() {
+        return Collections.unmodifiableList(onlyInLeft);
+    }
+
+    /**
+     * Gets the leafs of the right tree with no leaf at the same position of the left tree
+     * @return - The leafs
+     */
+    public List<LeafNode<V, T>> getOnlyInRight() {
+        return Collections.unmodifiableList(onlyInRight);
+    }
+
+    /**
+     * Gets the leafs at the same position of both trees that have different hashes
+     * @return - The pairs of leafs
+     */
+    public List<Change<V, T>> getChanged() {
+        return Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Checks if the trees are equal
+     * @return - True if no differences were found
+     */
+    public boolean isEmpty() {
+        return onlyInLeft.isEmpty() && onlyInRight.isEmpty() && changed.isEmpty();
+    }
+
+    void addOnlyInLeft(LeafNode<V, T> leafNode) {
+        onlyInLeft.add(leafNode);
+    }
+
+    void addOnlyInRight(LeafNode<V, T> leafNode) {
+        onlyInRight.add(leafNode);
+    }
+
+    void addChanged(LeafNode<V, T> left, LeafNode<V, T> right) {
+        changed.add(new Change<>(left, right));
+    }
+
+    /**
+     * A leaf that changed, the leaf of each tree at the same position
+     * @param <V> - The hash type
+     * @param <T> - The data type
+     */
+    public static class Change<V extends Comparable<V>, T extends Hashable<V>> {
+
+        private final LeafNode<V, T> left;
+
+        private final LeafNode<V, T> right;
+
+        Change(LeafNode<V, T> left, LeafNode<V, T> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Gets the leaf of the left tree
+         * @return - The leaf
+         */
+        public LeafNode<V, T> getLeft() {
+            return left;
+        }
+
+        /**
+         * Gets the leaf of the right tree
+         * @return - The leaf
+         */
+        public LeafNode<V, T> getRight() {
+            return right;
+        }
+    }
+}
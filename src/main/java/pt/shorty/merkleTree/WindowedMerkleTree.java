@@ -0,0 +1,237 @@
+package pt.shorty.merkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * A merkle tree over a sliding time window of a stream of events, so that a window doesn't require building a whole
+ * {@link MerkleTree} out of its events.
+ * Events are bucketed by time into epochs of a fixed duration and the window holds the last bucket count epochs.
+ * Each bucket is a {@link MerkleLogFrontier}, so an event costs the hashes of the perfect subtrees it completes, one on
+ * average, and a bucket holds O(log n) hashes, no leaf hashes nor anything needed for proofs.
+ * The root of each non empty bucket is bound to its epoch, hashed together with the hash of the epoch, so the same
+ * events in another epoch give another window root, and the root of the window is the hash of the bound bucket
+ * roots, oldest first. Bound roots are cached per bucket, so reading the window root after a change costs the
+ * O(log n) frontier of each changed bucket, one hash binding it to its epoch, and one hash over the bound roots of up
+ * to bucket count buckets, whose input grows with the bucket count. When the window slides, every expired bucket is
+ * dropped whole, subtree and all, without touching its leafs.
+ * Events can arrive late, as long as their epoch is still in the window.
+ * @param <V> - The hash type
+ */
+public class WindowedMerkleTree<V extends Comparable<V>> {
+
+    private final LogHashBuilder<V> hashBuilder;
+
+    /**
+     * Hashes an epoch, to bind each bucket root to the epoch of the bucket
+     */
+    private final LongFunction<V> epochHasher;
+
+    private final long epochMillis;
+
+    /**
+     * The buckets of the window, the bucket of each epoch at epoch modulo bucket count. Null when empty
+     */
+    private final List<MerkleLogFrontier<V>> buckets;
+
+    /**
+     * The root of each bucket hashed with the hash of its epoch, at the same slot as the bucket. Null when
+     * the bucket is empty or changed since
+     */
+    private final List<V> boundRoots;
+
+    /**
+     * The epoch of the most recent bucket of the window
+     */
+    private long newestEpoch = Long.MIN_VALUE;
+
+    private int leafCount;
+
+    /**
+     * Cached root hash, cleared on any change
+     */
+    private V rootHash;
+
+    /**
+     * Creates a new, empty window
+     * @param hashBuilder - Builds the hashes of the bucket leafs and nodes and of the window root
+     * @param epochHasher - Hashes an epoch, see {@link #epochDigests(DigestHashBuilder)}
+     * @param epochMillis - The time span of each bucket
+     * @param bucketCount - The number of buckets of the window, so the window spans epochMillis * bucketCount
+     */
+    public WindowedMerkleTree(LogHashBuilder<V> hashBuilder, LongFunction<V> epochHasher, long epochMillis, int bucketCount) {
+        if (epochMillis <= 0) {
+            throw new IllegalArgumentException("Invalid epoch duration " + epochMillis + ". Duration must be greater than 0");
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Invalid bucket count " + bucketCount + ". Count must be greater than 0");
+        }
+        this.hashBuilder = hashBuilder;
+        this.epochHasher = epochHasher;
+        this.epochMillis = epochMillis;
+        this.buckets = new ArrayList<>(Collections.nCopies(bucketCount, null));
+        this.boundRoots = new ArrayList<>(Collections.nCopies(bucketCount, null));
+    }
+
+    /**
+     * Gets an epoch hasher for {@link Digest} windows, the digest of the 8 big endian bytes of the epoch
+     * @param hashBuilder - The builder to digest the epochs with
+     * @return - The epoch hasher
+     */
+    public static LongFunction<Digest> epochDigests(DigestHashBuilder hashBuilder) {
+        return epoch -> hashBuilder.digest(ByteBuffer.allocate(Long.BYTES).putLong(epoch).array());
+    }
+
+    /**
+     * Adds an event to the bucket of its epoch. An event newer than the window slides it forward
+     * @param timestamp - The time of the event, in millis
+     * @param data - The event
+     * @return - The index of the event in its bucket
+     */
+    public int append(long timestamp, Hashable<V> data) {
+        return appendHash(timestamp, data.hash());
+    }
+
+    /**
+     * Adds an event out of an already computed hash, see {@link #append(long, Hashable)}
+     * @param timestamp - The time of the event, in millis
+     * @param hash - The hash of the event
+     * @return - The index of the event in its bucket
+     */
+    public int appendHash(long timestamp, V hash) {
+        long epoch = getEpoch(timestamp);
+        if (newestEpoch != Long.MIN_VALUE && epoch <= newestEpoch - buckets.size()) {
+            throw new IllegalArgumentException("Invalid timestamp " + timestamp + ". Timestamp must be in an epoch from "
+                    + getOldestEpoch() + ", the window has moved past it");
+        }
+        advanceToEpoch(epoch);
+        int slot = slot(epoch);
+        MerkleLogFrontier<V> bucket = buckets.get(slot);
+        if (bucket == null) {
+            bucket = new MerkleLogFrontier<>(hashBuilder);
+            buckets.set(slot, bucket);
+        }
+        leafCount++;
+        boundRoots.set(slot, null);
+        rootHash = null;
+        return bucket.appendHash(hash);
+    }
+
+    /**
+     * Slides the window forward so that it ends at the epoch of the supplied time, dropping the expired buckets.
+     * Does nothing if the window already ends at or after that epoch
+     * @param timestamp - The current time, in millis
+     */
+    public void advanceTo(long timestamp) {
+        advanceToEpoch(getEpoch(timestamp));
+    }
+
+    /**
+     * Gets the root hash of the window, the hash of the root of each non empty bucket bound to its epoch, oldest first
+     * @return - The root hash or null if the window has no events
+     */
+    public V getRootHash() {
+        if (rootHash == null && leafCount > 0) {
+            List<V> bucketRoots = new ArrayList<>();
+            for (long epoch = getOldestEpoch(); epoch <= newestEpoch; epoch++) {
+                int slot = slot(epoch);
+                MerkleLogFrontier<V> bucket = buckets.get(slot);
+                if (bucket == null) {
+                    continue;
+                }
+                if (boundRoots.get(slot) == null) {
+                    boundRoots.set(slot, hashBuilder.hash(Arrays.asList(epochHasher.apply(epoch), bucket.getRootHash())));
+                }
+                bucketRoots.add(boundRoots.get(slot));
+            }
+            rootHash = hashBuilder.hash(bucketRoots);
+        }
+        return rootHash;
+    }
+
+    /**
+     * Gets the root hash of a single bucket, see {@link MerkleLogFrontier#getRootHash()}
+     * @param epoch - The epoch of the bucket, see {@link #getEpoch(long)}
+     * @return - The root hash or null if the bucket has no events or is not in the window
+     */
+    public V getBucketRootHash(long epoch) {
+        MerkleLogFrontier<V> bucket = bucket(epoch);
+        return bucket == null ? null : bucket.getRootHash();
+    }
+
+    /**
+     * Gets the number of events of a single bucket
+     * @param epoch - The epoch of the bucket, see {@link #getEpoch(long)}
+     * @return - The number of events, 0 if the bucket is not in the window
+     */
+    public int getBucketLeafCount(long epoch) {
+        MerkleLogFrontier<V> bucket = bucket(epoch);
+        return bucket == null ? 0 : bucket.getLeafCount();
+    }
+
+    /**
+     * Gets the number of events in the window
+     * @return - The number of events
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Gets the epoch a time falls in
+     * @param timestamp - The time, in millis
+     * @return - The epoch
+     */
+    public long getEpoch(long timestamp) {
+        return Math.floorDiv(timestamp, epochMillis);
+    }
+
+    /**
+     * Gets the epoch of the most recent bucket of the window
+     * @return - The epoch or Long.MIN_VALUE if the window never had events
+     */
+    public long getNewestEpoch() {
+        return newestEpoch;
+    }
+
+    /**
+     * Gets the epoch of the oldest bucket of the window
+     * @return - The epoch or Long.MIN_VALUE if the window never had events
+     */
+    public long getOldestEpoch() {
+        return newestEpoch == Long.MIN_VALUE ? Long.MIN_VALUE : newestEpoch - buckets.size() + 1;
+    }
+
+    private void advanceToEpoch(long epoch) {
+        if (newestEpoch != Long.MIN_VALUE && epoch <= newestEpoch) {
+            return;
+        }
+        //past a full window every bucket expires, no need to visit each skipped epoch
+        long expired = newestEpoch == Long.MIN_VALUE ? buckets.size() : Math.min(epoch - newestEpoch, buckets.size());
+        for (long i = 0; i < expired; i++) {
+            int slot = slot(epoch - i);
+            if (buckets.get(slot) != null) {
+                leafCount -= buckets.get(slot).getLeafCount();
+                buckets.set(slot, null);
+                boundRoots.set(slot, null);
+                rootHash = null;
+            }
+        }
+        newestEpoch = epoch;
+    }
+
+    private MerkleLogFrontier<V> bucket(long epoch) {
+        if (newestEpoch == Long.MIN_VALUE || epoch > newestEpoch || epoch < getOldestEpoch()) {
+            return null;
+        }
+        return buckets.get(slot(epoch));
+    }
+
+    private int slot(long epoch) {
+        return (int) Math.floorMod(epoch, (long) buckets.size());
+    }
+}
@@ -0,0 +1,118 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncMerkleTreeTest {
+
+    private final DigestHashBuilder hashBuilder = new DigestHashBuilder("sha-256");
+
+    private List<Hashable<Digest>> elements(int n, int changedIndex, int changedValue) {
+        List<Hashable<Digest>> elements = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Digest hash = hashBuilder.digest(BigInteger.valueOf(i == changedIndex ? changedValue : i).toByteArray());
+            elements.add(() -> hash);
+        }
+        return elements;
+    }
+
+    @Test
+    public void testUpdatesAreCoalesced() throws Exception {
+        AtomicInteger hashCalls = new AtomicInteger();
+        HashBuilder<Digest> countingBuilder = hashes -> {
+            hashCalls.incrementAndGet();
+            return hashBuilder.hash(hashes);
+        };
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(elements(64, -1, 0), countingBuilder);
+        try (AsyncMerkleTree<Digest, Hashable<Digest>> asyncTree = new AsyncMerkleTree<>(tree, Duration.ofMinutes(1))) {
+            Digest initialRoot = asyncTree.getRootHash();
+            hashCalls.set(0);
+            List<Hashable<Digest>> last = null;
+            for (int value = 100; value < 200; value++) {
+                last = elements(64, 5, value);
+                asyncTree.update(5, last.get(5));
+            }
+            //nothing is applied until the staleness bound or a flush
+            assertEquals(initialRoot, asyncTree.getRootHash());
+            assertEquals(0, hashCalls.get());
+
+            Digest root = asyncTree.flush().get(10, TimeUnit.SECONDS);
+            assertEquals(new MerkleTree<>(last, hashBuilder).getRootHash(), root);
+            assertEquals(root, asyncTree.getRootHash());
+            //100 updates of the same leaf, a single rehash of its 6 ancestors
+            assertEquals(6, hashCalls.get());
+        }
+    }
+
+    @Test
+    public void testRootHashAsyncWaitsForStaleness() throws Exception {
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(elements(16, -1, 0), hashBuilder);
+        try (AsyncMerkleTree<Digest, Hashable<Digest>> asyncTree = new AsyncMerkleTree<>(tree, Duration.ofMillis(50))) {
+            assertEquals(tree.getRootHash(), asyncTree.rootHashAsync().get(10, TimeUnit.SECONDS));
+
+            List<Hashable<Digest>> changed = elements(16, 3, 1000);
+            asyncTree.update(3, changed.get(3));
+            Digest root = asyncTree.rootHashAsync().get(10, TimeUnit.SECONDS);
+            assertEquals(new MerkleTree<>(changed, hashBuilder).getRootHash(), root);
+        }
+    }
+
+    @Test
+    public void testFailedBatchIsReportedAndQueuedAgain() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        HashBuilder<Digest> failingBuilder = hashes -> {
+            if (failing.get()) {
+                throw new IllegalStateException("hash failure");
+            }
+            return hashBuilder.hash(hashes);
+        };
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(elements(16, -1, 0), failingBuilder);
+        try (AsyncMerkleTree<Digest, Hashable<Digest>> asyncTree = new AsyncMerkleTree<>(tree, Duration.ofMillis(10))) {
+            Digest initialRoot = asyncTree.getRootHash();
+            List<Hashable<Digest>> changed = elements(16, 3, 1000);
+            failing.set(true);
+            asyncTree.update(3, changed.get(3));
+
+            //no future is waiting, the failure is kept for the next read
+            IllegalStateException failure = null;
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (failure == null && System.currentTimeMillis() < deadline) {
+                try {
+                    asyncTree.getRootHash();
+                    Thread.sleep(10);
+                } catch (IllegalStateException e) {
+                    failure = e;
+                }
+            }
+            assertNotNull(failure);
+            assertEquals("hash failure", failure.getCause().getMessage());
+            assertEquals(initialRoot, asyncTree.getRootHash());
+
+            //the failed update was queued again, a flush with a waiting future gets the failure itself
+            ExecutionException flushFailure = assertThrows(ExecutionException.class, () -> asyncTree.flush().get(10, TimeUnit.SECONDS));
+            assertEquals("hash failure", flushFailure.getCause().getMessage());
+            failing.set(false);
+            Digest root = asyncTree.flush().get(10, TimeUnit.SECONDS);
+            assertEquals(new MerkleTree<>(changed, hashBuilder).getRootHash(), root);
+            assertEquals(root, asyncTree.getRootHash());
+        }
+    }
+
+    @Test
+    public void testInvalidUpdateAndClosedTree() {
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(elements(4, -1, 0), hashBuilder);
+        AsyncMerkleTree<Digest, Hashable<Digest>> asyncTree = new AsyncMerkleTree<>(tree, Duration.ofMillis(10));
+        assertThrows(IllegalArgumentException.class, () -> asyncTree.update(4, elements(5, -1, 0).get(4)));
+        asyncTree.close();
+        assertThrows(IllegalStateException.class, () -> asyncTree.update(0, elements(1, -1, 0).get(0)));
+    }
+}
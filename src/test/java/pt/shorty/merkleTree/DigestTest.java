@@ -0,0 +1,117 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DigestTest {
+
+    @Test
+    public void testRoundTripForSupportedLengths() {
+        Random random = new Random(42);
+        for (int length : new int[]{16, 20, 32}) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            Digest digest = Digest.of(bytes);
+            assertEquals(length, digest.length());
+            assertArrayEquals(bytes, digest.toByteArray());
+        }
+    }
+
+    @Test
+    public void testInvalidLength() {
+        assertThrows(IllegalArgumentException.class, () -> Digest.of(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> Digest.of(new byte[33]));
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        byte[] bytes = new byte[20];
+        new Random(1).nextBytes(bytes);
+        Digest a = Digest.of(bytes);
+        Digest b = Digest.read(ByteBuffer.wrap(bytes), 20);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+
+        bytes[19] ^= 1;
+        Digest c = Digest.of(bytes);
+        assertNotEquals(a, c);
+        assertNotEquals(0, a.compareTo(c));
+    }
+
+    @Test
+    public void testOrderingMatchesUnsignedByteOrder() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            byte[] a = new byte[20];
+            byte[] b = new byte[20];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            if (i % 2 == 0) {
+                //share a prefix so the tail word decides
+                System.arraycopy(a, 0, b, 0, 17);
+            }
+            int expected = Integer.signum(Arrays.compareUnsigned(a, b));
+            assertEquals(expected, Integer.signum(Digest.of(a).compareTo(Digest.of(b))));
+        }
+    }
+
+    @Test
+    public void testDigestHashBuilderMatchesMessageDigest() throws NoSuchAlgorithmException {
+        DigestHashBuilder hashBuilder = new DigestHashBuilder("sha-256");
+        Digest left = hashBuilder.digest("A".getBytes());
+        Digest right = hashBuilder.digest(ByteBuffer.wrap("B".getBytes()));
+
+        MessageDigest sha = MessageDigest.getInstance("sha-256");
+        sha.update(sha.digest("A".getBytes()));
+        sha.update(MessageDigest.getInstance("sha-256").digest("B".getBytes()));
+
+        assertArrayEquals(sha.digest(), hashBuilder.hash(List.of(left, right)).toByteArray());
+    }
+
+    @Test
+    public void testDigestAsTreeHash() {
+        DigestHashBuilder hashBuilder = new DigestHashBuilder("md5");
+        List<Hashable<Digest>> elements = new ArrayList<>();
+        List<Hashable<Digest>> otherElements = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            Digest hash = hashBuilder.digest(BigInteger.valueOf(i).toByteArray());
+            elements.add(() -> hash);
+            Digest otherHash = i == 10 ? hashBuilder.digest(new byte[]{-1}) : hash;
+            otherElements.add(() -> otherHash);
+        }
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(elements, hashBuilder);
+        MerkleTree<Digest, Hashable<Digest>> otherTree = new MerkleTree<>(otherElements, hashBuilder);
+
+        Queue<LeafNode<Digest, Hashable<Digest>>> diff = tree.diff(otherTree);
+        assertEquals(1, diff.size());
+        assertSame(elements.get(10), Objects.requireNonNull(diff.poll()).getData());
+    }
+
+    @Test
+    public void testFromDigestsBuffer() {
+        DigestHashBuilder hashBuilder = new DigestHashBuilder("sha-1");
+        List<Digest> hashes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(10 * 20);
+        for (int i = 0; i < 10; i++) {
+            Digest hash = hashBuilder.digest(BigInteger.valueOf(i).toByteArray());
+            hashes.add(hash);
+            hash.writeTo(buffer);
+        }
+        buffer.flip();
+
+        MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromDigests(buffer, 20, hashBuilder);
+        assertEquals(0, buffer.position());
+        assertEquals(10, tree.getLeafCount());
+        assertEquals(MerkleTree.fromHashes(hashes, hashBuilder).getRootHash(), tree.getRootHash());
+
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.fromDigests(ByteBuffer.allocate(30), 20, hashBuilder));
+    }
+}
@@ -0,0 +1,167 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectorySnapshotTest {
+
+    private final FileMerkleTreeBuilder fileTreeBuilder = new FileMerkleTreeBuilder("sha-256", 64);
+
+    private static void populate(Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("a/b"));
+        Files.createDirectories(dir.resolve("empty"));
+        Files.writeString(dir.resolve("root.txt"), "root");
+        Files.writeString(dir.resolve("a/one.txt"), "one");
+        Files.writeString(dir.resolve("a/b/two.txt"), "two".repeat(100));
+    }
+
+    @Test
+    public void testSameContentSameHash(@TempDir Path dir) throws IOException {
+        populate(dir.resolve("first"));
+        populate(dir.resolve("second"));
+        DirectorySnapshot first = DirectorySnapshot.create(dir.resolve("first"), fileTreeBuilder);
+        DirectorySnapshot second = DirectorySnapshot.create(dir.resolve("second"), fileTreeBuilder);
+        assertEquals(first.getRootHash(), second.getRootHash());
+        assertEquals(first.getHash(Paths.get("a/b")), second.getHash(Paths.get("a/b")));
+        assertNotNull(first.getHash(Paths.get("empty")));
+        assertNull(first.getHash(Paths.get("missing")));
+    }
+
+    @Test
+    public void testDirectoryHashesNamesAndEntries(@TempDir Path dir) throws IOException {
+        populate(dir);
+        DirectorySnapshot snapshot = DirectorySnapshot.create(dir, fileTreeBuilder);
+        DigestHashBuilder hashBuilder = fileTreeBuilder.getHashBuilder();
+        //for each entry sorted by name, the name (with a trailing / for a directory) and then the entry
+        Digest expected = hashBuilder.hash(List.of(
+                hashBuilder.digest("b/".getBytes(StandardCharsets.UTF_8)),
+                snapshot.getHash(Paths.get("a/b")),
+                hashBuilder.digest("one.txt".getBytes(StandardCharsets.UTF_8)),
+                snapshot.getHash(Paths.get("a/one.txt"))));
+        assertEquals(expected, snapshot.getHash(Paths.get("a")));
+        assertEquals(hashBuilder.hash(List.of()), snapshot.getHash(Paths.get("empty")));
+    }
+
+    @Test
+    public void testRefreshOnlyReportsChangedPaths(@TempDir Path dir) throws IOException {
+        populate(dir);
+        DirectorySnapshot snapshot = DirectorySnapshot.create(dir, fileTreeBuilder);
+        Digest rootHash = snapshot.getRootHash();
+        Digest unchangedHash = snapshot.getHash(Paths.get("a/one.txt"));
+        assertTrue(snapshot.refresh().isEmpty());
+
+        Files.writeString(dir.resolve("a/b/two.txt"), "changed");
+        Files.delete(dir.resolve("root.txt"));
+        Set<Path> changed = snapshot.refresh();
+        assertEquals(Set.of(Paths.get("a/b/two.txt"), Paths.get("root.txt")), changed);
+        assertNotEquals(rootHash, snapshot.getRootHash());
+        assertEquals(unchangedHash, snapshot.getHash(Paths.get("a/one.txt")));
+    }
+
+    @Test
+    public void testUpdateSinglePath(@TempDir Path dir) throws IOException {
+        populate(dir);
+        DirectorySnapshot snapshot = DirectorySnapshot.create(dir, fileTreeBuilder);
+        Files.writeString(dir.resolve("a/one.txt"), "one, but longer");
+        Files.createDirectories(dir.resolve("new/nested"));
+        Files.writeString(dir.resolve("new/nested/three.txt"), "three");
+
+        assertTrue(snapshot.update(dir.resolve("a/one.txt")));
+        assertFalse(snapshot.update(dir.resolve("a/one.txt")));
+        assertTrue(snapshot.update(dir.resolve("new/nested/three.txt")));
+        assertNotNull(snapshot.getHash(Paths.get("new/nested/three.txt")));
+
+        assertEquals(DirectorySnapshot.create(dir, fileTreeBuilder).getRootHash(), snapshot.getRootHash());
+        assertThrows(IllegalArgumentException.class, () -> snapshot.update(dir.resolve("../outside")));
+    }
+
+    @Test
+    public void testSaveAndLoad(@TempDir Path dir) throws IOException {
+        Path data = dir.resolve("data");
+        populate(data);
+        Path snapshotFile = dir.resolve("snapshot.bin");
+        DirectorySnapshot snapshot = DirectorySnapshot.create(data, fileTreeBuilder);
+        snapshot.save(snapshotFile);
+
+        DirectorySnapshot loaded = DirectorySnapshot.load(data, snapshotFile, fileTreeBuilder);
+        assertEquals(snapshot.getRootHash(), loaded.getRootHash());
+        assertTrue(loaded.refresh().isEmpty());
+
+        Files.writeString(data.resolve("a/one.txt"), "changed while not running");
+        loaded = DirectorySnapshot.load(data, snapshotFile, fileTreeBuilder);
+        assertEquals(Set.of(Paths.get("a/one.txt")), loaded.refresh());
+
+        assertThrows(IOException.class, () -> DirectorySnapshot.load(data, snapshotFile, new FileMerkleTreeBuilder("md5", 64)));
+    }
+
+    @Test
+    public void testLoadRejectsCorruptedEntries(@TempDir Path dir) throws IOException {
+        Path data = dir.resolve("data");
+        populate(data);
+        Path snapshotFile = dir.resolve("snapshot.bin");
+        DirectorySnapshot.create(data, fileTreeBuilder).save(snapshotFile);
+        byte[] bytes = Files.readAllBytes(snapshotFile);
+        //magic, version, algorithm and digest length
+        int headerLength = 4 + 4 + 2 + "sha-256".length() + 4;
+
+        //a file under a path whose parent is a file
+        Path fileParent = dir.resolve("file-parent.bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(fileParent))) {
+            out.write(bytes, 0, headerLength);
+            out.writeInt(2);
+            out.writeByte('F');
+            out.writeUTF("root.txt");
+            out.writeLong(0);
+            out.writeLong(0);
+            out.write(new byte[32]);
+            out.writeByte('D');
+            out.writeUTF("root.txt/child");
+        }
+        assertThrows(IOException.class, () -> DirectorySnapshot.load(data, fileParent, fileTreeBuilder));
+
+        //a file under a directory that was never saved
+        Path missingParent = dir.resolve("missing-parent.bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(missingParent))) {
+            out.write(bytes, 0, headerLength);
+            out.writeInt(1);
+            out.writeByte('D');
+            out.writeUTF("missing/child");
+        }
+        assertThrows(IOException.class, () -> DirectorySnapshot.load(data, missingParent, fileTreeBuilder));
+
+        //a digest length that doesn't match the algorithm
+        ByteBuffer.wrap(bytes).putInt(headerLength - 4, 1000);
+        Path badLength = dir.resolve("bad-length.bin");
+        Files.write(badLength, bytes);
+        assertThrows(IOException.class, () -> DirectorySnapshot.load(data, badLength, fileTreeBuilder));
+    }
+
+    @Test
+    public void testWatcherAppliesEvents(@TempDir Path dir) throws Exception {
+        populate(dir);
+        DirectorySnapshot snapshot = DirectorySnapshot.create(dir, fileTreeBuilder);
+        try (DirectorySnapshotWatcher watcher = new DirectorySnapshotWatcher(snapshot)) {
+            Files.createDirectories(dir.resolve("watched"));
+            Files.writeString(dir.resolve("watched/file.txt"), "watched");
+            Digest expected = DirectorySnapshot.create(dir, fileTreeBuilder).getRootHash();
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (!expected.equals(snapshot.getRootHash()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(expected, snapshot.getRootHash());
+            assertNull(watcher.getLastError());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileMerkleTreeBuilderTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Test
+    public void testChunksCoverTheFile(@TempDir Path dir) throws IOException {
+        byte[] content = randomContent(10 * CHUNK_SIZE + 100);
+        Path file = Files.write(dir.resolve("data.bin"), content);
+
+        FileMerkleTreeBuilder builder = new FileMerkleTreeBuilder("sha-256", CHUNK_SIZE);
+        MerkleTree<Digest, FileChunk> tree = builder.build(file);
+
+        assertEquals(11, tree.getLeafCount());
+        List<Digest> expectedHashes = new ArrayList<>();
+        long expectedOffset = 0;
+        for (AbstractNode<Digest> node : tree.getLeafNodes()) {
+            FileChunk chunk = LeafNode.<Digest, FileChunk>cast(node).getData();
+            assertEquals(expectedOffset, chunk.getOffset());
+            byte[] chunkContent = Arrays.copyOfRange(content, (int) chunk.getOffset(), (int) chunk.getOffset() + chunk.getLength());
+            expectedHashes.add(builder.getHashBuilder().digest(chunkContent));
+            expectedOffset += chunk.getLength();
+        }
+        assertEquals(content.length, expectedOffset);
+        assertEquals(MerkleTree.fromHashes(expectedHashes, builder.getHashBuilder()).getRootHash(), tree.getRootHash());
+    }
+
+    @Test
+    public void testDiffLocalizesChangedChunk(@TempDir Path dir) throws IOException {
+        byte[] content = randomContent(16 * CHUNK_SIZE);
+        Path file = Files.write(dir.resolve("data.bin"), content);
+        FileMerkleTreeBuilder builder = new FileMerkleTreeBuilder("md5", CHUNK_SIZE);
+        MerkleTree<Digest, FileChunk> before = builder.build(file);
+
+        content[5 * CHUNK_SIZE + 17] ^= 1;
+        Files.write(file, content);
+        MerkleTree<Digest, FileChunk> after = builder.build(file);
+
+        Queue<LeafNode<Digest, FileChunk>> diff = after.diff(before);
+        assertEquals(1, diff.size());
+        assertEquals(5L * CHUNK_SIZE, Objects.requireNonNull(diff.poll()).getData().getOffset());
+    }
+
+    @Test
+    public void testEmptyFile(@TempDir Path dir) throws IOException {
+        Path file = Files.write(dir.resolve("empty.bin"), new byte[0]);
+        MerkleTree<Digest, FileChunk> tree = new FileMerkleTreeBuilder("md5", CHUNK_SIZE).build(file);
+        assertEquals(0, tree.getLeafCount());
+        assertNull(tree.getRootHash());
+    }
+
+    @Test
+    public void testContentDefinedChunksResistInserts(@TempDir Path dir) throws IOException {
+        byte[] content = randomContent(256 * 1024);
+        byte[] edited = new byte[content.length + 1];
+        System.arraycopy(content, 0, edited, 0, 1000);
+        edited[1000] = 42;
+        System.arraycopy(content, 1000, edited, 1001, content.length - 1000);
+        Path original = Files.write(dir.resolve("original.bin"), content);
+        Path insert = Files.write(dir.resolve("insert.bin"), edited);
+
+        FileMerkleTreeBuilder cdcBuilder = new FileMerkleTreeBuilder("sha-256", new ContentDefinedChunker(512, 2048, 8192));
+        MerkleTree<Digest, FileChunk> originalTree = cdcBuilder.build(original);
+        MerkleTree<Digest, FileChunk> insertTree = cdcBuilder.build(insert);
+        long covered = 0;
+        for (AbstractNode<Digest> node : insertTree.getLeafNodes()) {
+            FileChunk chunk = LeafNode.<Digest, FileChunk>cast(node).getData();
+            assertEquals(covered, chunk.getOffset());
+            assertTrue(chunk.getLength() <= 8192);
+            covered += chunk.getLength();
+        }
+        assertEquals(edited.length, covered);
+        List<FileChunk> missing = FileMerkleTreeBuilder.chunksMissingFrom(insertTree, originalTree);
+        assertTrue(missing.size() <= 2, "only the chunks around the insert should change, got " + missing.size());
+        assertEquals(0, missing.get(0).getOffset());
+
+        FileMerkleTreeBuilder fixedBuilder = new FileMerkleTreeBuilder("sha-256", 2048);
+        List<FileChunk> fixedMissing = FileMerkleTreeBuilder.chunksMissingFrom(fixedBuilder.build(insert), fixedBuilder.build(original));
+        assertTrue(fixedMissing.size() > 100, "every fixed size chunk after the insert shifts");
+    }
+
+    @Test
+    public void testContentDefinedChunkerBounds() {
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(0, 2048, 8192));
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(4096, 2048, 8192));
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(512, 2048, 1024));
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
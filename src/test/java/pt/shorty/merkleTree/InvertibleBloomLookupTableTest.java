@@ -0,0 +1,188 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvertibleBloomLookupTableTest {
+
+    private static final DigestHashBuilder HASH_BUILDER = new DigestHashBuilder("sha-1");
+
+    private static Digest digest(int i) {
+        return HASH_BUILDER.digest(BigInteger.valueOf(i).toByteArray());
+    }
+
+    private static List<Digest> digests(int from, int to) {
+        List<Digest> digests = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            digests.add(digest(i));
+        }
+        return digests;
+    }
+
+    @Test
+    public void testDecodeSymmetricDifference() {
+        List<Digest> local = digests(0, 10_000);
+        List<Digest> remote = digests(5, 10_003);
+        MerkleTree<Digest, Hashable<Digest>> localTree = MerkleTree.fromHashes(local, HASH_BUILDER);
+        MerkleTree<Digest, Hashable<Digest>> remoteTree = MerkleTree.fromHashes(remote, HASH_BUILDER);
+
+        InvertibleBloomLookupTable localTable = InvertibleBloomLookupTable.of(localTree, 10);
+        InvertibleBloomLookupTable remoteTable = InvertibleBloomLookupTable.of(remoteTree, 10);
+        InvertibleBloomLookupTable.Difference difference = localTable.subtract(remoteTable).decode();
+
+        assertNotNull(difference);
+        assertEquals(new HashSet<>(digests(0, 5)), new HashSet<>(difference.getOnlyLocal()));
+        assertEquals(new HashSet<>(digests(10_000, 10_003)), new HashSet<>(difference.getOnlyRemote()));
+    }
+
+    @Test
+    public void testEqualTablesDecodeEmpty() {
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(30, 20);
+        digests(0, 100).forEach(table::add);
+
+        InvertibleBloomLookupTable.Difference difference = table.subtract(table).decode();
+        assertNotNull(difference);
+        assertTrue(difference.getOnlyLocal().isEmpty());
+        assertTrue(difference.getOnlyRemote().isEmpty());
+    }
+
+    @Test
+    public void testDecodeFailsWhenOverloaded() {
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(InvertibleBloomLookupTable.cellsFor(5), 20);
+        digests(0, 1000).forEach(table::add);
+        assertNull(table.decode());
+    }
+
+    @Test
+    public void testDecodesUpToExpectedDifferences() {
+        int failures = 0;
+        for (int seed = 0; seed < 100; seed++) {
+            InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(InvertibleBloomLookupTable.cellsFor(50), 20);
+            digests(seed * 50, seed * 50 + 50).forEach(table::add);
+            if (table.decode() == null) {
+                failures++;
+            }
+        }
+        assertTrue(failures <= 5, failures + " out of 100 tables failed to decode");
+    }
+
+    @Test
+    public void testSerializationRoundTrip() {
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(InvertibleBloomLookupTable.cellsFor(8), 20);
+        digests(0, 4).forEach(table::add);
+        digests(4, 8).forEach(table::remove);
+
+        ByteBuffer buffer = ByteBuffer.allocate(table.getSerializedSize());
+        table.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        InvertibleBloomLookupTable read = InvertibleBloomLookupTable.read(buffer);
+
+        assertEquals(table.getCellCount(), read.getCellCount());
+        InvertibleBloomLookupTable.Difference difference = read.decode();
+        assertNotNull(difference);
+        assertEquals(new HashSet<>(digests(0, 4)), new HashSet<>(difference.getOnlyLocal()));
+        assertEquals(new HashSet<>(digests(4, 8)), new HashSet<>(difference.getOnlyRemote()));
+        assertNotNull(read.subtract(table).decode());
+        assertTrue(read.subtract(table).decode().getOnlyLocal().isEmpty());
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new InvertibleBloomLookupTable(2, 20));
+        assertThrows(IllegalArgumentException.class, () -> new InvertibleBloomLookupTable(30, 33));
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(30, 20);
+        assertThrows(IllegalArgumentException.class, () -> table.add(Digest.of(new byte[16])));
+        assertThrows(IllegalArgumentException.class, () -> table.subtract(new InvertibleBloomLookupTable(33, 20)));
+        assertThrows(IllegalArgumentException.class, () -> new InvertibleBloomLookupTable(InvertibleBloomLookupTable.MAX_CELL_COUNT + 1, 20));
+        assertThrows(IllegalArgumentException.class, () -> InvertibleBloomLookupTable.cellsFor(Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class,
+                () -> InvertibleBloomLookupTable.of(MerkleTree.fromHashes(new ArrayList<>(), HASH_BUILDER), 10));
+    }
+
+    @Test
+    public void testReadRejectsBadHeader() {
+        ByteBuffer overflow = ByteBuffer.allocate(64);
+        overflow.putInt(Integer.MAX_VALUE).putInt(20).flip();
+        assertThrows(IllegalArgumentException.class, () -> InvertibleBloomLookupTable.read(overflow));
+
+        //a header claiming more cells than the buffer holds
+        InvertibleBloomLookupTable table = new InvertibleBloomLookupTable(30, 20);
+        ByteBuffer truncated = ByteBuffer.allocate(table.getSerializedSize());
+        table.writeTo(truncated);
+        truncated.flip().limit(truncated.limit() - 1);
+        assertThrows(IllegalArgumentException.class, () -> InvertibleBloomLookupTable.read(truncated));
+
+        ByteBuffer negative = ByteBuffer.allocate(64);
+        negative.putInt(30).putInt(-1).flip();
+        assertThrows(IllegalArgumentException.class, () -> InvertibleBloomLookupTable.read(negative));
+    }
+
+    @Test
+    public void testDuplicateLeafsAreReconciledAsSet() {
+        Digest duplicate = digest(-1);
+        List<Digest> local = new ArrayList<>(List.of(duplicate, duplicate));
+        local.addAll(digests(0, 300));
+        List<Digest> remote = new ArrayList<>(List.of(duplicate));
+        remote.addAll(digests(150, 450));
+        MerkleTree<Digest, Hashable<Digest>> localTree = MerkleTree.fromHashes(local, HASH_BUILDER);
+        MerkleTree<Digest, Hashable<Digest>> remoteTree = MerkleTree.fromHashes(remote, HASH_BUILDER);
+
+        //the table decodes with 400 expected differences, the fallback is used with none
+        for (int expectedDifferences : new int[]{400, 0}) {
+            InvertibleBloomLookupTable.Difference difference = InvertibleBloomLookupTable.reconcile(localTree, remoteTree, expectedDifferences);
+            assertEquals(150, difference.getOnlyLocal().size());
+            assertEquals(new HashSet<>(digests(0, 150)), new HashSet<>(difference.getOnlyLocal()));
+            assertEquals(150, difference.getOnlyRemote().size());
+            assertEquals(new HashSet<>(digests(300, 450)), new HashSet<>(difference.getOnlyRemote()));
+        }
+    }
+
+    @Test
+    public void testReconcileFallbackDropsHashesHeldWhereTreesAgree() {
+        List<Digest> onlyRemote = digests(-100, 0);
+        //the first copy matches by position, the second one is found by the descent, but the remote tree has it
+        for (int copied : new int[]{10, 100}) {
+            List<Digest> local = new ArrayList<>(digests(0, copied));
+            local.addAll(digests(0, copied));
+            List<Digest> remote = new ArrayList<>(digests(0, copied));
+            remote.addAll(onlyRemote);
+            MerkleTree<Digest, Hashable<Digest>> localTree = MerkleTree.fromHashes(local, HASH_BUILDER);
+            MerkleTree<Digest, Hashable<Digest>> remoteTree = MerkleTree.fromHashes(remote, HASH_BUILDER);
+
+            //100 differences don't decode with none expected
+            InvertibleBloomLookupTable.Difference difference = InvertibleBloomLookupTable.reconcile(localTree, remoteTree, 0);
+            assertTrue(difference.getOnlyLocal().isEmpty());
+            assertEquals(new HashSet<>(onlyRemote), new HashSet<>(difference.getOnlyRemote()));
+        }
+    }
+
+    @Test
+    public void testReconcileFallsBackToSetDifference() {
+        List<Digest> local = digests(0, 1000);
+        List<Digest> remote = new ArrayList<>(local);
+        Set<Digest> onlyLocal = new HashSet<>();
+        Set<Digest> onlyRemote = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            onlyLocal.add(remote.get(i * 10));
+            remote.set(i * 10, digest(-i - 1));
+            onlyRemote.add(digest(-i - 1));
+        }
+        MerkleTree<Digest, Hashable<Digest>> localTree = MerkleTree.fromHashes(local, HASH_BUILDER);
+        MerkleTree<Digest, Hashable<Digest>> remoteTree = MerkleTree.fromHashes(remote, HASH_BUILDER);
+
+        //200 differences in a table sized for 3 can't be decoded
+        InvertibleBloomLookupTable.Difference difference = InvertibleBloomLookupTable.reconcile(localTree, remoteTree, 3);
+        assertEquals(onlyLocal, new HashSet<>(difference.getOnlyLocal()));
+        assertEquals(onlyRemote, new HashSet<>(difference.getOnlyRemote()));
+
+        difference = InvertibleBloomLookupTable.reconcile(localTree, remoteTree, 200);
+        assertEquals(onlyLocal, new HashSet<>(difference.getOnlyLocal()));
+        assertEquals(onlyRemote, new HashSet<>(difference.getOnlyRemote()));
+    }
+}
@@ -0,0 +1,142 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleLogTest {
+
+    private static final DigestHashBuilder DIGEST_BUILDER = new DigestHashBuilder("sha-256");
+
+    private static final LogHashBuilder<Digest> HASH_BUILDER = DIGEST_BUILDER.forLog();
+
+    private static Digest leafHash(int i) {
+        return DIGEST_BUILDER.digest(BigInteger.valueOf(i).toByteArray());
+    }
+
+    private static MerkleLog<Digest> logOf(int n) {
+        MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, log.appendHash(leafHash(i)));
+        }
+        return log;
+    }
+
+    /**
+     * MTH(D[start:end]) of RFC 6962, computed from scratch
+     */
+    private static Digest referenceRoot(int start, int end) {
+        if (end - start == 1) {
+            return HASH_BUILDER.hashLeaf(leafHash(start));
+        }
+        int k = Integer.highestOneBit(end - start - 1);
+        return HASH_BUILDER.hash(Arrays.asList(referenceRoot(start, start + k), referenceRoot(start + k, end)));
+    }
+
+    @Test
+    public void testRootMatchesRfcDefinition() {
+        MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+        assertNull(log.getRootHash());
+        for (int n = 1; n <= 100; n++) {
+            log.appendHash(leafHash(n - 1));
+            assertEquals(referenceRoot(0, n), log.getRootHash());
+        }
+        for (int n = 1; n <= 100; n++) {
+            assertEquals(referenceRoot(0, n), log.getRootHash(n));
+        }
+        assertNull(log.getRootHash(0));
+        assertThrows(IllegalArgumentException.class, () -> log.getRootHash(101));
+    }
+
+    @Test
+    public void testFrontierMatchesLogInLogarithmicSpace() {
+        MerkleLogFrontier<Digest> frontier = new MerkleLogFrontier<>(HASH_BUILDER);
+        assertNull(frontier.getRootHash());
+        MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+        for (int n = 1; n <= 1000; n++) {
+            assertEquals(n - 1, frontier.appendHash(leafHash(n - 1)));
+            log.appendHash(leafHash(n - 1));
+            assertEquals(n, frontier.getLeafCount());
+            assertEquals(log.getRootHash(), frontier.getRootHash());
+            //a perfect subtree per set bit of the leaf count, nothing else
+            assertEquals(Integer.bitCount(n), frontier.getFrontierSize());
+        }
+        assertEquals(referenceRoot(0, 1000), frontier.getRootHash());
+    }
+
+    @Test
+    public void testRootMatchesTreeForPowersOf2() {
+        for (int n = 4; n <= 64; n *= 2) {
+            List<Digest> hashes = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                hashes.add(HASH_BUILDER.hashLeaf(leafHash(i)));
+            }
+            assertEquals(MerkleTree.fromHashes(hashes, HASH_BUILDER).getRootHash(), logOf(n).getRootHash());
+        }
+    }
+
+    @Test
+    public void testConsistencyProofs() {
+        MerkleLog<Digest> log = logOf(40);
+        for (int newSize = 0; newSize <= 40; newSize++) {
+            for (int oldSize = 0; oldSize <= newSize; oldSize++) {
+                List<Digest> proof = log.getConsistencyProof(oldSize, newSize);
+                assertTrue(proof.size() <= 2 * (32 - Integer.numberOfLeadingZeros(newSize)), "proof of " + proof.size() + " hashes");
+                assertTrue(MerkleLog.verifyConsistency(HASH_BUILDER, oldSize, newSize,
+                        log.getRootHash(oldSize), log.getRootHash(newSize), proof), oldSize + " -> " + newSize);
+            }
+        }
+    }
+
+    @Test
+    public void testConsistencyProofRejectsForks() {
+        MerkleLog<Digest> log = logOf(21);
+        MerkleLog<Digest> fork = new MerkleLog<>(HASH_BUILDER);
+        for (int i = 0; i < 21; i++) {
+            fork.appendHash(i == 5 ? leafHash(-1) : leafHash(i));
+        }
+        List<Digest> proof = log.getConsistencyProof(7, 21);
+        assertFalse(MerkleLog.verifyConsistency(HASH_BUILDER, 7, 21, fork.getRootHash(7), log.getRootHash(21), proof));
+        assertFalse(MerkleLog.verifyConsistency(HASH_BUILDER, 7, 21, log.getRootHash(7), fork.getRootHash(21), proof));
+        assertFalse(MerkleLog.verifyConsistency(HASH_BUILDER, 7, 21, log.getRootHash(7), log.getRootHash(21),
+                proof.subList(0, proof.size() - 1)));
+        assertFalse(MerkleLog.verifyConsistency(HASH_BUILDER, 8, 21, log.getRootHash(7), log.getRootHash(21), proof));
+
+        assertThrows(IllegalArgumentException.class, () -> log.getConsistencyProof(10, 9));
+        assertThrows(IllegalArgumentException.class, () -> log.getConsistencyProof(1, 22));
+    }
+
+    @Test
+    public void testAppendData() {
+        MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+        Hashable<Digest> data = () -> leafHash(7);
+        assertEquals(0, log.append(data));
+        assertEquals(HASH_BUILDER.hashLeaf(leafHash(7)), log.getLeafHash(0));
+        assertEquals(HASH_BUILDER.hashLeaf(leafHash(7)), log.getRootHash());
+        assertEquals(1, log.getLeafCount());
+    }
+
+    @Test
+    public void testLeafsAndNodesAreDomainSeparated() throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("sha-256");
+        MerkleLog<Digest> log = logOf(2);
+
+        md.update((byte) 0x00);
+        Digest leaf0 = Digest.of(md.digest(leafHash(0).toByteArray()));
+        md.update((byte) 0x00);
+        Digest leaf1 = Digest.of(md.digest(leafHash(1).toByteArray()));
+        assertEquals(leaf0, log.getLeafHash(0));
+        assertEquals(leaf1, log.getLeafHash(1));
+
+        md.update((byte) 0x01);
+        md.update(leaf0.toByteArray());
+        assertEquals(Digest.of(md.digest(leaf1.toByteArray())), log.getRootHash());
+        //the same 2 hashes hashed as a leaf land in another domain
+        assertNotEquals(DIGEST_BUILDER.hash(Arrays.asList(leaf0, leaf1)), log.getRootHash());
+    }
+}
@@ -0,0 +1,338 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleTreeJournalTest {
+
+    private static final DigestHashBuilder HASH_BUILDER = new DigestHashBuilder("sha-1");
+
+    private static final JournalCodec<Value> CODEC = new JournalCodec<>() {
+        @Override
+        public byte[] encode(Value data) {
+            return ByteBuffer.allocate(4).putInt(data.value).array();
+        }
+
+        @Override
+        public Value decode(byte[] bytes) {
+            return new Value(ByteBuffer.wrap(bytes).getInt());
+        }
+    };
+
+    private static final JournalCodec<Digest> HASH_CODEC = JournalCodec.digests();
+
+    /**
+     * Number of times the data of a leaf was hashed
+     */
+    private static final AtomicInteger DATA_HASHES = new AtomicInteger();
+
+    private static MerkleTree<Digest, Value> treeOf(int n, int fanout) {
+        List<Value> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            values.add(new Value(i));
+        }
+        return new MerkleTree<>(values, HASH_BUILDER, fanout);
+    }
+
+    private static Map<Integer, Value> updates(int... indexesAndValues) {
+        Map<Integer, Value> updates = new HashMap<>();
+        for (int i = 0; i < indexesAndValues.length; i += 2) {
+            updates.put(indexesAndValues[i], new Value(indexesAndValues[i + 1]));
+        }
+        return updates;
+    }
+
+    @Test
+    public void testRecoverReplaysJournal(@TempDir Path dir) throws IOException {
+        MerkleTree<Digest, Value> expected = treeOf(100, 4);
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(100, 4), CODEC, HASH_CODEC)) {
+            journal.applyBatch(updates(3, -3, 50, -50));
+            journal.update(3, new Value(-33));
+            journal.update(99, new Value(-99));
+            expected.applyBatch(updates(3, -33, 50, -50, 99, -99));
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+        }
+
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            MerkleTree<Digest, Value> tree = journal.getTree();
+            assertEquals(expected.getRootHash(), tree.getRootHash());
+            assertEquals(4, tree.getFanout());
+            assertEquals(-33, tree.getLeafData(3).value);
+
+            //recovered journals keep appending after the replayed records
+            journal.update(0, new Value(-1));
+            expected.applyBatch(updates(0, -1));
+        }
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+        }
+    }
+
+    @Test
+    public void testTornTailIsDropped(@TempDir Path dir) throws IOException {
+        MerkleTree<Digest, Value> expected = treeOf(20, 2);
+        long validLength;
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(20, 2), CODEC, HASH_CODEC)) {
+            journal.applyBatch(updates(1, -1, 2, -2));
+            validLength = journal.getJournalSize();
+            journal.applyBatch(updates(5, -5, 6, -6));
+        }
+        expected.applyBatch(updates(1, -1, 2, -2));
+        //a crash halfway through writing the second batch
+        try (FileChannel channel = FileChannel.open(dir.resolve("tree.journal"), StandardOpenOption.WRITE)) {
+            channel.truncate(validLength + 10);
+        }
+
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+            assertEquals(5, journal.getTree().getLeafData(5).value);
+            assertEquals(validLength, journal.getJournalSize());
+            journal.update(7, new Value(-7));
+            expected.applyBatch(updates(7, -7));
+        }
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+        }
+    }
+
+    @Test
+    public void testCorruptedRecordIsDropped(@TempDir Path dir) throws IOException {
+        MerkleTree<Digest, Value> expected = treeOf(20, 2);
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(20, 2), CODEC, HASH_CODEC)) {
+            journal.update(1, new Value(-1));
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve("tree.journal"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 14);
+        }
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+            assertEquals(0, journal.getJournalSize());
+        }
+    }
+
+    @Test
+    public void testCompaction(@TempDir Path dir) throws IOException {
+        Digest rootHash;
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(10, 2), CODEC, HASH_CODEC)) {
+            assertFalse(journal.compactIfNeeded());
+            int compactions = 0;
+            for (int i = 0; i < 100; i++) {
+                journal.update(i % 10, new Value(-i));
+                if (journal.compactIfNeeded()) {
+                    compactions++;
+                    assertEquals(0, journal.getJournalSize());
+                }
+            }
+            assertTrue(compactions > 0);
+            journal.update(4, new Value(1000));
+            journal.compact();
+            assertEquals(0, journal.getJournalSize());
+            rootHash = journal.getTree().getRootHash();
+        }
+        try (MerkleTreeJournal<Digest, Value> recovered = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(rootHash, recovered.getTree().getRootHash());
+            assertEquals(1000, recovered.getTree().getLeafData(4).value);
+        }
+    }
+
+    @Test
+    public void testRecoveryOnlyHashesJournaledUpdates(@TempDir Path dir) throws IOException {
+        MerkleTree<Digest, Value> expected = treeOf(10_000, 2);
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(10_000, 2), CODEC, HASH_CODEC)) {
+            journal.update(1234, new Value(-1));
+        }
+        expected.applyBatch(updates(1234, -1));
+        Digest expectedRoot = expected.getRootHash();
+
+        DATA_HASHES.set(0);
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expectedRoot, journal.getTree().getRootHash());
+        }
+        //the updated leaf and a sibling per level, not every leaf of the snapshot
+        assertTrue(DATA_HASHES.get() <= 20, DATA_HASHES.get() + " leafs hashed");
+    }
+
+    @Test
+    public void testFailedWriteIsRolledBack(@TempDir Path dir) throws IOException {
+        MerkleTree<Digest, Value> expected = treeOf(20, 2);
+        MerkleTree<Digest, Value> tree = treeOf(20, 2);
+        MerkleTreeJournal.create(dir, tree, CODEC, HASH_CODEC).close();
+        FailingChannel channel = new FailingChannel(FileChannel.open(dir.resolve("tree.journal"), StandardOpenOption.WRITE));
+        try (MerkleTreeJournal<Digest, Value> journal = new MerkleTreeJournal<>(dir, CODEC, HASH_CODEC, tree, channel)) {
+            journal.update(1, new Value(-1));
+            expected.applyBatch(updates(1, -1));
+            long size = journal.getJournalSize();
+
+            //half of the record makes it to the file before the write fails
+            channel.failWrites = true;
+            assertThrows(IOException.class, () -> journal.update(2, new Value(-2)));
+            assertEquals(size, journal.getJournalSize());
+            assertEquals(expected.getRootHash(), tree.getRootHash());
+
+            channel.failWrites = false;
+            journal.update(3, new Value(-3));
+            expected.applyBatch(updates(3, -3));
+
+            //a write that can't be rolled back leaves the journal failed
+            channel.failWrites = true;
+            channel.failTruncates = true;
+            assertThrows(IOException.class, () -> journal.update(4, new Value(-4)));
+            assertThrows(IllegalStateException.class, () -> journal.update(5, new Value(-5)));
+        }
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.recover(dir, CODEC, HASH_CODEC, HASH_BUILDER)) {
+            assertEquals(expected.getRootHash(), journal.getTree().getRootHash());
+        }
+    }
+
+    @Test
+    public void testInvalidUpdateIsNotJournaled(@TempDir Path dir) throws IOException {
+        try (MerkleTreeJournal<Digest, Value> journal = MerkleTreeJournal.create(dir, treeOf(10, 2), CODEC, HASH_CODEC)) {
+            assertThrows(IllegalArgumentException.class, () -> journal.applyBatch(updates(1, -1, 10, -10)));
+            assertEquals(0, journal.getJournalSize());
+        }
+        assertThrows(IllegalArgumentException.class, () -> MerkleTreeJournal.create(dir,
+                MerkleTree.fromHashes(Collections.singletonList(HASH_BUILDER.digest(new byte[]{1})), HASH_BUILDER), null, HASH_CODEC));
+    }
+
+    private static class Value implements Hashable<Digest> {
+
+        private final int value;
+
+        private Value(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Digest hash() {
+            DATA_HASHES.incrementAndGet();
+            return HASH_BUILDER.digest(BigInteger.valueOf(value).toByteArray());
+        }
+    }
+
+    /**
+     * A journal file that can be made to fail halfway through a write
+     */
+    private static class FailingChannel extends FileChannel {
+
+        private final FileChannel channel;
+
+        private boolean failWrites;
+
+        private boolean failTruncates;
+
+        private FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failWrites) {
+                ByteBuffer half = src.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                channel.write(half);
+                throw new IOException("No space left on device");
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncates) {
+                throw new IOException("Input/output error");
+            }
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
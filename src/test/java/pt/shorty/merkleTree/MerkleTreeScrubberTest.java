@@ -0,0 +1,208 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MerkleTreeScrubberTest {
+
+    private static final DigestHashBuilder HASH_BUILDER = new DigestHashBuilder("sha-1");
+
+    /**
+     * 1024 leafs with the default fanout, so 2047 nodes
+     */
+    private static final int LEAF_COUNT = 1024;
+
+    private static Digest leafHash(int index) {
+        return HASH_BUILDER.digest(BigInteger.valueOf(index).toByteArray());
+    }
+
+    private static MerkleTree<Digest, Hashable<Digest>> treeOf(int corruptedIndex) {
+        List<Digest> hashes = new ArrayList<>();
+        for (int i = 0; i < LEAF_COUNT; i++) {
+            hashes.add(leafHash(i == corruptedIndex ? -i : i));
+        }
+        return MerkleTree.fromHashes(hashes, HASH_BUILDER);
+    }
+
+    @Test
+    public void testCleanTreeReportsNothing() {
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(treeOf(-1), MerkleTreeScrubberTest::leafHash, false);
+        assertEquals(2046, scrubber.scrub(2046));
+        assertEquals(0, scrubber.getCompletedPasses());
+        assertEquals(1, scrubber.scrub(1));
+        assertEquals(1, scrubber.getCompletedPasses());
+        assertEquals(2047 * 2, scrubber.scrub(2047 * 2));
+        assertEquals(3, scrubber.getCompletedPasses());
+        assertTrue(scrubber.getCorruptedRanges().isEmpty());
+    }
+
+    @Test
+    public void testWrongLeafHashIsReportedAndRepaired() {
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(5);
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(tree, MerkleTreeScrubberTest::leafHash, true);
+        scrubber.scrub(2047);
+
+        //the ancestors are consistent with the wrong leaf, only the leaf itself is reported
+        List<MerkleTreeScrubber.CorruptedRange> ranges = scrubber.getCorruptedRanges();
+        assertEquals(1, ranges.size());
+        assertEquals(5, ranges.get(0).getFromLeaf());
+        assertEquals(6, ranges.get(0).getToLeaf());
+        assertEquals(0, ranges.get(0).getLevel());
+        assertTrue(ranges.get(0).isRepaired());
+        assertEquals(treeOf(-1).getRootHash(), tree.getRootHash());
+
+        scrubber.scrub(2047);
+        assertEquals(1, scrubber.getCorruptedRanges().size());
+    }
+
+    @Test
+    public void testWrongNodeHashIsReportedOnce() {
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(-1);
+        Digest rootHash = tree.getRootHash();
+        //level 8, over leafs 256 to 511
+        Node<Digest> node = (Node<Digest>) tree.getRoot().getChildren().get(0).getChildren().get(1);
+        node.setHash(leafHash(-1));
+
+        MerkleTreeScrubber<Digest, Hashable<Digest>> checker = new MerkleTreeScrubber<>(tree, MerkleTreeScrubberTest::leafHash, false);
+        checker.scrub(2047);
+        List<MerkleTreeScrubber.CorruptedRange> ranges = checker.getCorruptedRanges();
+        assertEquals(1, ranges.size());
+        assertEquals(256, ranges.get(0).getFromLeaf());
+        assertEquals(512, ranges.get(0).getToLeaf());
+        assertEquals(8, ranges.get(0).getLevel());
+        assertFalse(ranges.get(0).isRepaired());
+        assertEquals(leafHash(-1), node.hash());
+        //later passes find the same range again, it's still reported once
+        checker.scrub(2047 * 2);
+        assertEquals(ranges, checker.getCorruptedRanges());
+
+        MerkleTreeScrubber<Digest, Hashable<Digest>> repairer = new MerkleTreeScrubber<>(tree, MerkleTreeScrubberTest::leafHash, true);
+        repairer.scrub(2047);
+        assertEquals(1, repairer.getCorruptedRanges().size());
+        assertTrue(repairer.getCorruptedRanges().get(0).isRepaired());
+        assertEquals(rootHash, tree.getRootHash());
+        assertEquals(rootHash, tree.getRoot().hash());
+    }
+
+    @Test
+    public void testLeafsWithDataAreOnlyReported() {
+        List<Hashable<Digest>> data = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Digest hash = leafHash(i);
+            data.add(() -> hash);
+        }
+        MerkleTree<Digest, Hashable<Digest>> tree = new MerkleTree<>(data, HASH_BUILDER);
+        Digest rootHash = tree.getRootHash();
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(tree,
+                index -> leafHash(index == 3 ? -3 : index), true);
+        scrubber.scrub(100);
+        List<MerkleTreeScrubber.CorruptedRange> ranges = scrubber.getCorruptedRanges();
+        assertFalse(ranges.isEmpty());
+        for (MerkleTreeScrubber.CorruptedRange range : ranges) {
+            assertEquals(3, range.getFromLeaf());
+            assertEquals(4, range.getToLeaf());
+            assertFalse(range.isRepaired());
+        }
+        assertEquals(rootHash, tree.getRootHash());
+    }
+
+    @Test
+    public void testUpdateMidPassRestartsThePass() {
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(-1);
+        int[] changedIndex = {-1};
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(tree,
+                index -> leafHash(index == changedIndex[0] ? -index : index), true);
+        //past leaf 3, its parent's child hashes are gathered already
+        scrubber.scrub(1000);
+
+        Digest newHash = leafHash(-3);
+        tree.applyBatch(Map.of(3, () -> newHash));
+        changedIndex[0] = 3;
+        scrubber.scrub(2047);
+
+        //the pass is started over, nothing is reported nor repaired to the old hashes
+        assertEquals(1, scrubber.getRestartedPasses());
+        assertEquals(1, scrubber.getCompletedPasses());
+        assertTrue(scrubber.getCorruptedRanges().isEmpty());
+        assertEquals(treeOf(3).getRootHash(), tree.getRootHash());
+        assertEquals(treeOf(3).getRootHash(), tree.getRoot().hash());
+    }
+
+    @Test
+    public void testReadOnlyTreeCantBeRepaired() {
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(-1);
+        new SubtreeInterner<Digest, Hashable<Digest>>().intern(tree);
+        assertThrows(IllegalArgumentException.class, () -> new MerkleTreeScrubber<>(tree, MerkleTreeScrubberTest::leafHash, true));
+        new MerkleTreeScrubber<>(tree, MerkleTreeScrubberTest::leafHash, false).scrub(10);
+    }
+
+    /**
+     * Starts a scrubber on a clock that only moves when the scrubber sleeps, and lets it run until the clock reaches
+     * the supplied time
+     */
+    private static MerkleTreeScrubber<Digest, Hashable<Digest>> runFor(long millis, int hashesPerSecond) throws InterruptedException {
+        long[] now = new long[1];
+        CountDownLatch stopped = new CountDownLatch(1);
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(treeOf(7), MerkleTreeScrubberTest::leafHash, false,
+                () -> now[0], sleepMillis -> {
+                    now[0] += sleepMillis;
+                    if (now[0] >= millis) {
+                        stopped.countDown();
+                        throw new InterruptedException();
+                    }
+                });
+        scrubber.start(hashesPerSecond);
+        assertThrows(IllegalStateException.class, () -> scrubber.start(hashesPerSecond));
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        scrubber.close();
+        return scrubber;
+    }
+
+    @Test
+    public void testBackgroundScrubbingIsThrottled() throws InterruptedException {
+        try (MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(treeOf(7), MerkleTreeScrubberTest::leafHash, false)) {
+            assertThrows(IllegalArgumentException.class, () -> scrubber.start(0));
+        }
+
+        //a step every 100 millis, at 0, 100, 200, 300 and 400, of 10 hashes each
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = runFor(500, 100);
+        assertEquals(50, scrubber.getCheckedHashes());
+        assertEquals(0, scrubber.getCompletedPasses());
+
+        //half a hash per step adds up over 2 steps
+        assertEquals(5, runFor(1000, 5).getCheckedHashes());
+
+        //100k hashes in the first step, about 48 passes, each finding the same leaf
+        scrubber = runFor(100, 1_000_000);
+        assertEquals(100_000, scrubber.getCheckedHashes());
+        assertEquals(100_000 / 2047, scrubber.getCompletedPasses());
+        assertEquals(1, scrubber.getCorruptedRanges().size());
+        assertEquals(7, scrubber.getCorruptedRanges().get(0).getFromLeaf());
+    }
+
+    @Test
+    public void testBackgroundScrubbingStopsOnClose() throws InterruptedException {
+        MerkleTreeScrubber<Digest, Hashable<Digest>> scrubber = new MerkleTreeScrubber<>(treeOf(7), MerkleTreeScrubberTest::leafHash, false);
+        try {
+            scrubber.start(1_000_000);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (scrubber.getCompletedPasses() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(scrubber.getCompletedPasses() > 0);
+        } finally {
+            scrubber.close();
+        }
+        long checkedHashes = scrubber.getCheckedHashes();
+        Thread.sleep(200);
+        assertEquals(checkedHashes, scrubber.getCheckedHashes());
+    }
+}
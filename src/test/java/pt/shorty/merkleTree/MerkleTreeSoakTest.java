@@ -0,0 +1,208 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Large scale tests, guarding against heap blow-ups, deep recursion and super linear behavior
+ * that the small trees of {@link MerkleTreeTest} can't show.
+ * Excluded from the regular test task, run with ./gradlew soakTest. The largest tree size is set by
+ * -Psoak.maxLeaves (default 1 000 000, up to 100 000 000 given enough heap, see -Psoak.maxHeap).
+ * Leaf hashes are synthetic and the hash builder is a cheap mix of the children words, so the bounds
+ * measure the tree itself and not a digest algorithm.
+ */
+@Tag("soak")
+public class MerkleTreeSoakTest {
+
+    private static final long MAX_LEAVES = Long.getLong("merkle.soak.maxLeaves", 1_000_000L);
+
+    /**
+     * Generous bounds, meant to catch order of magnitude regressions, not to benchmark
+     */
+    private static final long MAX_BYTES_PER_LEAF = 400;
+    private static final long MAX_BUILD_NANOS_PER_LEAF = 20_000;
+    private static final long MAX_DIFF_NANOS_PER_LEAF = 20_000;
+    private static final long MAX_UPDATE_NANOS_PER_LEAF_AND_LEVEL = 50_000;
+    private static final long MAX_ALLOCATED_BYTES_PER_DIFFERENCE = 16 * 1024;
+
+    private static final HashBuilder<Digest> MIX_HASH_BUILDER = hashes -> {
+        long h0 = 0x9E3779B97F4A7C15L;
+        long h1 = 0xC2B2AE3D27D4EB4FL;
+        for (Digest hash : hashes) {
+            h0 = Long.rotateLeft(h0 ^ hash.word(0), 31) * 0x9E3779B97F4A7C15L;
+            h1 = Long.rotateLeft(h1 ^ hash.word(1), 27) * 0xC2B2AE3D27D4EB4FL;
+        }
+        return digestOf(h0, h1);
+    };
+
+    private static List<Long> sizes() {
+        List<Long> sizes = new ArrayList<>();
+        for (long size = 10_000; size <= MAX_LEAVES; size *= 10) {
+            sizes.add(size);
+        }
+        return sizes;
+    }
+
+    private static Digest digestOf(long w0, long w1) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(w0).putLong(w1).flip();
+        return Digest.read(buffer, 16);
+    }
+
+    private static Digest leafHash(long index, long version) {
+        return digestOf(index * 0x9E3779B97F4A7C15L + version, ~index ^ (version << 32));
+    }
+
+    private static Digest[] leafHashes(int n) {
+        Digest[] hashes = new Digest[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = leafHash(i, 0);
+        }
+        return hashes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @Test
+    public void testConstructionTimeAndFootprint() {
+        for (long size : sizes()) {
+            int n = (int) size;
+            long before = usedHeap();
+            long start = System.nanoTime();
+            MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromHashes(leafHashes(n), MIX_HASH_BUILDER);
+            tree.getRootHash();
+            long elapsed = System.nanoTime() - start;
+            long bytesPerLeaf = (usedHeap() - before) / n;
+
+            assertEquals(n, tree.getLeafCount());
+            assertTrue(tree.getTreeDepth() <= 64 - Long.numberOfLeadingZeros(n) + 1, "depth " + tree.getTreeDepth());
+            assertTrue(bytesPerLeaf <= MAX_BYTES_PER_LEAF, n + " leafs use " + bytesPerLeaf + " bytes per leaf");
+            assertTrue(elapsed / n <= MAX_BUILD_NANOS_PER_LEAF, n + " leafs took " + elapsed / n + "ns per leaf to build");
+        }
+    }
+
+    @Test
+    public void testOffHeapTreeKeepsHashesOffHeap() {
+        DigestHashBuilder hashBuilder = new DigestHashBuilder("md5");
+        for (long size : sizes()) {
+            int n = (int) size;
+            ByteBuffer digests = ByteBuffer.allocateDirect(n * 16);
+            for (int i = 0; i < n; i++) {
+                leafHash(i, 0).writeTo(digests);
+            }
+            digests.flip();
+            long before = usedHeap();
+            try (OffHeapMerkleTree tree = new OffHeapMerkleTree(digests, hashBuilder)) {
+                long heapBytes = usedHeap() - before;
+                assertEquals(n, tree.getLeafCount());
+                assertTrue(tree.getArenaBytes() <= 2L * n * 16 + 1024, n + " leafs use " + tree.getArenaBytes() + " arena bytes");
+                assertTrue(heapBytes <= 64 * 1024, n + " leafs use " + heapBytes + " heap bytes");
+            }
+        }
+    }
+
+    @Test
+    public void testBatchUpdateScalesWithTouchedPaths() {
+        for (long size : sizes()) {
+            int n = (int) size;
+            MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromHashes(leafHashes(n), MIX_HASH_BUILDER);
+            tree.getRootHash();
+            Random random = new Random(n);
+            Map<Integer, Hashable<Digest>> updates = new HashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                Digest hash = leafHash(random.nextInt(n), 1);
+                updates.put(random.nextInt(n), () -> hash);
+            }
+            long start = System.nanoTime();
+            tree.applyBatch(updates);
+            tree.getRootHash();
+            long elapsed = System.nanoTime() - start;
+
+            long touched = (long) updates.size() * tree.getTreeDepth();
+            assertTrue(elapsed / touched <= MAX_UPDATE_NANOS_PER_LEAF_AND_LEVEL,
+                    n + " leafs took " + elapsed / touched + "ns per updated leaf and level");
+        }
+    }
+
+    @Test
+    public void testDiffAllocationsScaleWithDifferences() {
+        for (long size : sizes()) {
+            int n = (int) size;
+            Digest[] hashes = leafHashes(n);
+            MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromHashes(hashes, MIX_HASH_BUILDER);
+            Random random = new Random(n);
+            Set<Integer> changed = new HashSet<>();
+            while (changed.size() < 100) {
+                int index = random.nextInt(n);
+                changed.add(index);
+                hashes[index] = leafHash(index, 1);
+            }
+            MerkleTree<Digest, Hashable<Digest>> otherTree = MerkleTree.fromHashes(hashes, MIX_HASH_BUILDER);
+            tree.getRootHash();
+            otherTree.getRootHash();
+
+            long allocatedBefore = allocatedBytes();
+            Queue<LeafNode<Digest, Hashable<Digest>>> diff = tree.diff(otherTree);
+            long allocated = allocatedBytes() - allocatedBefore;
+            assertEquals(changed.size(), diff.size());
+            if (allocatedBefore >= 0) {
+                assertTrue(allocated / changed.size() <= MAX_ALLOCATED_BYTES_PER_DIFFERENCE,
+                        n + " leafs allocated " + allocated / changed.size() + " bytes per difference");
+            }
+
+            int[] streamed = new int[1];
+            allocatedBefore = allocatedBytes();
+            DiffCursor<Digest, Hashable<Digest>> cursor = tree.diff(otherTree, leaf -> ++streamed[0] > 0, Integer.MAX_VALUE);
+            allocated = allocatedBytes() - allocatedBefore;
+            assertTrue(cursor.isComplete());
+            assertEquals(changed.size(), streamed[0]);
+            if (allocatedBefore >= 0) {
+                assertTrue(allocated / changed.size() <= MAX_ALLOCATED_BYTES_PER_DIFFERENCE,
+                        n + " leafs allocated " + allocated / changed.size() + " bytes per streamed difference");
+            }
+        }
+    }
+
+    @Test
+    public void testDiffOfDifferentDepthsIsLinear() {
+        for (long size : sizes()) {
+            int n = (int) size;
+            Digest[] hashes = leafHashes(n);
+            //every other leaf, so each leaf of the half tree matches a leaf of the pivot under a different branch
+            Digest[] halfHashes = new Digest[n / 2];
+            for (int i = 0; i < halfHashes.length; i++) {
+                halfHashes[i] = hashes[2 * i + 1];
+            }
+            MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromHashes(hashes, MIX_HASH_BUILDER);
+            MerkleTree<Digest, Hashable<Digest>> halfTree = MerkleTree.fromHashes(halfHashes, MIX_HASH_BUILDER);
+            tree.getRootHash();
+            halfTree.getRootHash();
+
+            long start = System.nanoTime();
+            Queue<LeafNode<Digest, Hashable<Digest>>> diff = tree.diff(halfTree);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(n / 2, diff.size());
+            assertTrue(elapsed / n <= MAX_DIFF_NANOS_PER_LEAF, n + " leafs took " + elapsed / n + "ns per leaf to diff");
+        }
+    }
+}
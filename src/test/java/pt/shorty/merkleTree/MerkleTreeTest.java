@@ -18,7 +18,11 @@ public class MerkleTreeTest {
             elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
         }
         Collections.sort(elements);
-        return new MerkleTree<>(elements, hashes -> {
+        return new MerkleTree<>(elements, md5HashBuilder());
+    }
+
+    private static HashBuilder<ByteArray> md5HashBuilder() {
+        return hashes -> {
             MessageDigest md5 = null;
             try {
                 md5 = MessageDigest.getInstance("md5");
@@ -28,7 +32,7 @@ public class MerkleTreeTest {
             MessageDigest finalMd = md5;
             hashes.forEach(h -> finalMd.update(h.array));
             return new ByteArray(md5.digest());
-        });
+        };
     }
 
     @Test
@@ -66,7 +70,7 @@ public class MerkleTreeTest {
         Queue<AbstractNode<ByteArray>> leafNodes = tree.getLeafNodes();
         assertEquals(numberOfLeafs, leafNodes.size());
         for (int i = 0; i < numberOfLeafs; i++) {
-            LeafNode<ByteArray, HashableImpl<Integer>> node = (LeafNode<ByteArray, HashableImpl<Integer>>) leafNodes.poll();
+            LeafNode<ByteArray, HashableImpl<Integer>> node = LeafNode.cast(leafNodes.poll());
             assertEquals(i, node.getData().data);
         }
     }
@@ -265,7 +269,7 @@ public class MerkleTreeTest {
             throw new RuntimeException(e);
         }
         for (int i = 0; i < size; i++) {
-            LeafNode<ByteArray, HashableImpl<Integer>> node = (LeafNode<ByteArray, HashableImpl<Integer>>) leafNodes.poll();
+            LeafNode<ByteArray, HashableImpl<Integer>> node = LeafNode.cast(leafNodes.poll());
             assertArrayEquals(leafHashes.get(i).array, node.hash().array);
             md5.update(leafHashes.get(i).array);
 
@@ -380,6 +384,362 @@ public class MerkleTreeTest {
     }
 
 
+    @Test
+    public void testApplyBatchMatchesRebuiltTree() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(64);
+        ByteArray originalRootHash = tree.getRootHash();
+
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        List<HashableImpl<Integer>> expectedElements = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            expectedElements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        for (int i : new int[]{0, 1, 2, 17, 63}) {
+            HashableImpl<Integer> element = new HashableImpl<>(1000 + i, (v) -> BigInteger.valueOf(v).toByteArray());
+            updates.put(i, element);
+            expectedElements.set(i, element);
+        }
+        tree.applyBatch(updates);
+
+        MerkleTree<ByteArray, HashableImpl<Integer>> expectedTree = new MerkleTree<>(expectedElements, md5HashBuilder());
+        assertNotEquals(originalRootHash, tree.getRootHash());
+        assertEquals(expectedTree.getRootHash(), tree.getRootHash());
+        assertEquals(0, tree.diff(expectedTree).size());
+        assertEquals(5, tree.diff(buildTreeForNElements(64)).size());
+    }
+
+    @Test
+    public void testApplyBatchRehashesSharedAncestorsOnce() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        int[] hashCalls = new int[1];
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, hashes -> {
+            hashCalls[0]++;
+            MessageDigest md5 = null;
+            try {
+                md5 = MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            MessageDigest finalMd = md5;
+            hashes.forEach(h -> finalMd.update(h.array));
+            return new ByteArray(md5.digest());
+        });
+        tree.getRootHash();
+        hashCalls[0] = 0;
+
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        updates.put(0, new HashableImpl<>(100, (v) -> BigInteger.valueOf(v).toByteArray()));
+        updates.put(1, new HashableImpl<>(101, (v) -> BigInteger.valueOf(v).toByteArray()));
+        tree.applyBatch(updates);
+        tree.getRootHash();
+
+        //both leafs share the whole path to the root: level 1, level 2 and the root
+        assertEquals(3, hashCalls[0]);
+    }
+
+    @Test
+    public void testApplyBatchInvalidIndexLeavesTreeUntouched() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(4);
+        ByteArray rootHash = tree.getRootHash();
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        updates.put(0, new HashableImpl<>(100, (v) -> BigInteger.valueOf(v).toByteArray()));
+        updates.put(4, new HashableImpl<>(101, (v) -> BigInteger.valueOf(v).toByteArray()));
+        assertThrows(IllegalArgumentException.class, () -> tree.applyBatch(updates));
+        assertEquals(rootHash, tree.getRootHash());
+    }
+
+    @Test
+    public void testDataMutatedInPlaceNeedsApplyBatch() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder());
+        ByteArray rootHash = tree.getRootHash();
+
+        elements.get(3).data = 100;
+        //the internal node hashes are cached, the tree doesn't see the change yet
+        assertEquals(rootHash, tree.getRootHash());
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        updates.put(3, elements.get(3));
+        tree.applyBatch(updates);
+        assertEquals(new MerkleTree<>(elements, md5HashBuilder()).getRootHash(), tree.getRootHash());
+        assertNotEquals(rootHash, tree.getRootHash());
+    }
+
+
+    @Test
+    public void testFromHashesMatchesDataTree() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(33);
+        List<ByteArray> hashes = new ArrayList<>();
+        for (int i = 0; i < 33; i++) {
+            hashes.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()).hash());
+        }
+        MerkleTree<ByteArray, Hashable<ByteArray>> hashTree = MerkleTree.fromHashes(hashes, md5HashBuilder());
+        assertEquals(tree.getTreeDepth(), hashTree.getTreeDepth());
+        assertEquals(tree.getRootHash(), hashTree.getRootHash());
+
+        LeafNode<ByteArray, Hashable<ByteArray>> leafNode = LeafNode.cast(hashTree.getLeafNodes().peek());
+        assertNull(Objects.requireNonNull(leafNode).getData());
+        assertEquals(hashes.get(0), leafNode.hash());
+    }
+
+
+    @Test
+    public void testLeftAndRightAreFirstAndLastChild() {
+        List<LeafNode<ByteArray, HashableImpl<Integer>>> leafs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            //two leafs with the same hash, they are still told apart
+            leafs.add(new LeafNode<>(new HashableImpl<>(i % 3, (v) -> BigInteger.valueOf(v).toByteArray())));
+        }
+        Node<ByteArray> node = new Node<>(1, md5HashBuilder());
+        assertThrows(IllegalStateException.class, () -> node.setRightChild(leafs.get(1)));
+
+        node.setLeftChild(leafs.get(0));
+        assertSame(leafs.get(0), node.getLeftChild());
+        assertNull(node.getRightChild());
+        assertTrue(leafs.get(0).isLeft());
+        assertFalse(leafs.get(0).isRight());
+
+        node.setRightChild(leafs.get(1));
+        node.setChild(2, leafs.get(2));
+        node.setChild(3, leafs.get(3));
+        assertSame(leafs.get(0), node.getLeftChild());
+        assertSame(leafs.get(3), node.getRightChild());
+        assertTrue(leafs.get(0).isLeft());
+        assertTrue(leafs.get(3).isRight());
+        assertFalse(leafs.get(0).isRight());
+        for (int i = 1; i < 3; i++) {
+            assertFalse(leafs.get(i).isLeft());
+            assertFalse(leafs.get(i).isRight());
+        }
+
+        //the right child is the last one, setting it replaces the last child
+        LeafNode<ByteArray, HashableImpl<Integer>> last = new LeafNode<>(new HashableImpl<>(9, (v) -> BigInteger.valueOf(v).toByteArray()));
+        node.setRightChild(last);
+        assertEquals(4, node.getChildren().size());
+        assertSame(last, node.getRightChild());
+        assertTrue(last.isRight());
+        assertFalse(node.isLeft());
+        assertFalse(node.isRight());
+    }
+
+    @Test
+    public void testFanoutMakesShallowerTrees() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        assertEquals(6, new MerkleTree<>(elements, md5HashBuilder(), 2).getTreeDepth());
+        assertEquals(3, new MerkleTree<>(elements, md5HashBuilder(), 4).getTreeDepth());
+        assertEquals(2, new MerkleTree<>(elements, md5HashBuilder(), 16).getTreeDepth());
+        assertEquals(64, new MerkleTree<>(elements, md5HashBuilder(), 16).getLeafNodes().size());
+        assertThrows(IllegalArgumentException.class, () -> new MerkleTree<>(elements, md5HashBuilder(), 1));
+    }
+
+    @Test
+    public void testDiffAndApplyBatchWithFanout() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        List<HashableImpl<Integer>> otherElements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+            otherElements.add(new HashableImpl<>(i == 42 ? -1 : i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder(), 8);
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = new MerkleTree<>(otherElements, md5HashBuilder(), 8);
+
+        Queue<LeafNode<ByteArray, HashableImpl<Integer>>> diff = tree.diff(otherTree);
+        assertEquals(1, diff.size());
+        assertEquals(42, Objects.requireNonNull(diff.poll()).getData().data);
+
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        updates.put(42, otherElements.get(42));
+        tree.applyBatch(updates);
+        assertEquals(otherTree.getRootHash(), tree.getRootHash());
+    }
+
+
+    @Test
+    public void testStreamingDiffMatchesDiff() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(64);
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = buildTreeForNElements(33);
+        List<LeafNode<ByteArray, HashableImpl<Integer>>> streamed = new ArrayList<>();
+        DiffCursor<ByteArray, HashableImpl<Integer>> cursor = tree.diff(otherTree, streamed::add, Integer.MAX_VALUE);
+        assertTrue(cursor.isComplete());
+        assertEquals(new ArrayList<>(tree.diff(otherTree)), streamed);
+    }
+
+    @Test
+    public void testStreamingDiffPagesAndStops() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(63);
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = buildTreeForNElements(33);
+        List<Integer> found = new ArrayList<>();
+        DiffCursor<ByteArray, HashableImpl<Integer>> cursor = tree.diff(otherTree, leaf -> found.add(leaf.getData().data), 10);
+        assertEquals(10, found.size());
+        assertFalse(cursor.isComplete());
+
+        //early stop after the first difference of the page
+        assertEquals(1, cursor.resume(leaf -> !found.add(leaf.getData().data), 10));
+        while (!cursor.isComplete()) {
+            cursor.resume(leaf -> found.add(leaf.getData().data), 7);
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 33; i < 63; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, found);
+        assertEquals(0, cursor.resume(leaf -> true, 10));
+    }
+
+    @Test
+    public void testStreamingDiffEqualTrees() {
+        DiffCursor<ByteArray, HashableImpl<Integer>> cursor = buildTreeForNElements(64)
+                .diff(buildTreeForNElements(64), leaf -> fail("equal trees have no differences"), 10);
+        assertTrue(cursor.isComplete());
+    }
+
+    @Test
+    public void testStreamingDiffReportsEveryPosition() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            //leafs 3 and 9 end up with the same data, and so the same hash
+            elements.add(new HashableImpl<>(i == 3 || i == 9 ? 100 : i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder());
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = buildTreeForNElements(16);
+        List<LeafNode<ByteArray, HashableImpl<Integer>>> streamed = new ArrayList<>();
+        tree.diff(otherTree, streamed::add, Integer.MAX_VALUE);
+        //both positions are streamed, the diff queue holds the hash once
+        assertEquals(2, streamed.size());
+        assertSame(elements.get(3), streamed.get(0).getData());
+        assertSame(elements.get(9), streamed.get(1).getData());
+        assertEquals(1, tree.diff(otherTree).size());
+    }
+
+    @Test
+    public void testStreamingDiffSkipsLeafOfShallowerTreeInItsBranchOnly() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        for (int data : new int[]{1, 2, 1, 4}) {
+            elements.add(new HashableImpl<>(data, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder());
+        List<HashableImpl<Integer>> otherElements = new ArrayList<>();
+        for (int data : new int[]{1, 5}) {
+            otherElements.add(new HashableImpl<>(data, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = new MerkleTree<>(otherElements, md5HashBuilder());
+
+        //the leaf 1 of the other tree matches the first leaf 1 of its branch, not the one in the next branch
+        List<Integer> found = new ArrayList<>();
+        DiffCursor<ByteArray, HashableImpl<Integer>> cursor = tree.diff(otherTree, leaf -> found.add(leaf.getData().data), 1);
+        assertEquals(List.of(2), found);
+        while (!cursor.isComplete()) {
+            cursor.resume(leaf -> found.add(leaf.getData().data), 1);
+        }
+        assertEquals(List.of(2, 1, 4), found);
+    }
+
+    @Test
+    public void testStreamingDiffStateIsBounded() {
+        int size = 100_000;
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        List<HashableImpl<Integer>> otherElements = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            elements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+            otherElements.add(new HashableImpl<>(-i - 1, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder());
+        //a fully diverged tree, shallower so that branches of the pivot tree are compared against its leafs
+        MerkleTree<ByteArray, HashableImpl<Integer>> sameDepthTree = new MerkleTree<>(otherElements, md5HashBuilder());
+        MerkleTree<ByteArray, HashableImpl<Integer>> shallowerTree = new MerkleTree<>(otherElements.subList(0, size / 8), md5HashBuilder());
+        //at most fanout pending pairs per level, plus the hash of the current branch
+        int maxStateSize = 2 * tree.getRoot().getLevel() + 1;
+        for (MerkleTree<ByteArray, HashableImpl<Integer>> otherTree : List.of(sameDepthTree, shallowerTree)) {
+            int[] found = new int[1];
+            DiffCursor<ByteArray, HashableImpl<Integer>> cursor = tree.diff(otherTree, leaf -> ++found[0] > 0, 1000);
+            while (!cursor.isComplete()) {
+                assertTrue(cursor.getStateSize() <= maxStateSize, "cursor holds " + cursor.getStateSize() + " entries");
+                cursor.resume(leaf -> ++found[0] > 0, 1000);
+            }
+            assertEquals(size, found[0]);
+            assertEquals(0, cursor.getStateSize());
+        }
+    }
+
+    @Test
+    public void testSymmetricDiffWithDifferentDepths() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(64);
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = buildTreeForNElements(33);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 33; i < 64; i++) {
+            expected.add(i);
+        }
+
+        SymmetricDiff<ByteArray, HashableImpl<Integer>> diff = tree.symmetricDiff(otherTree);
+        assertEquals(expected, leafData(diff.getOnlyInLeft()));
+        assertTrue(diff.getOnlyInRight().isEmpty());
+        assertTrue(diff.getChanged().isEmpty());
+
+        diff = otherTree.symmetricDiff(tree);
+        assertTrue(diff.getOnlyInLeft().isEmpty());
+        assertEquals(expected, leafData(diff.getOnlyInRight()));
+        assertTrue(diff.getChanged().isEmpty());
+    }
+
+    @Test
+    public void testSymmetricDiffChangedAndAppended() {
+        List<HashableImpl<Integer>> elements = new ArrayList<>();
+        List<HashableImpl<Integer>> otherElements = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            if (i < 20) {
+                elements.add(new HashableImpl<>(i == 5 ? -5 : i, (v) -> BigInteger.valueOf(v).toByteArray()));
+            }
+            otherElements.add(new HashableImpl<>(i, (v) -> BigInteger.valueOf(v).toByteArray()));
+        }
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = new MerkleTree<>(elements, md5HashBuilder());
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = new MerkleTree<>(otherElements, md5HashBuilder());
+
+        SymmetricDiff<ByteArray, HashableImpl<Integer>> diff = tree.symmetricDiff(otherTree);
+        assertTrue(diff.getOnlyInLeft().isEmpty());
+        assertEquals(Arrays.asList(20, 21, 22, 23, 24, 25, 26, 27, 28, 29), leafData(diff.getOnlyInRight()));
+        assertEquals(1, diff.getChanged().size());
+        assertEquals(-5, diff.getChanged().get(0).getLeft().getData().data);
+        assertEquals(5, diff.getChanged().get(0).getRight().getData().data);
+    }
+
+    @Test
+    public void testSymmetricDiffMatchesBothDiffsForSameDepth() {
+        MerkleTree<ByteArray, HashableImpl<Integer>> tree = buildTreeForNElements(64);
+        MerkleTree<ByteArray, HashableImpl<Integer>> otherTree = buildTreeForNElements(64);
+        assertTrue(tree.symmetricDiff(otherTree).isEmpty());
+
+        Map<Integer, HashableImpl<Integer>> updates = new HashMap<>();
+        updates.put(3, new HashableImpl<>(-3, (v) -> BigInteger.valueOf(v).toByteArray()));
+        updates.put(40, new HashableImpl<>(-40, (v) -> BigInteger.valueOf(v).toByteArray()));
+        otherTree.applyBatch(updates);
+
+        SymmetricDiff<ByteArray, HashableImpl<Integer>> diff = tree.symmetricDiff(otherTree);
+        List<LeafNode<ByteArray, HashableImpl<Integer>>> left = new ArrayList<>();
+        List<LeafNode<ByteArray, HashableImpl<Integer>>> right = new ArrayList<>();
+        for (SymmetricDiff.Change<ByteArray, HashableImpl<Integer>> change : diff.getChanged()) {
+            left.add(change.getLeft());
+            right.add(change.getRight());
+        }
+        assertEquals(new ArrayList<>(tree.diff(otherTree)), left);
+        assertEquals(new ArrayList<>(otherTree.diff(tree)), right);
+    }
+
+    private static List<Integer> leafData(List<LeafNode<ByteArray, HashableImpl<Integer>>> leafNodes) {
+        List<Integer> data = new ArrayList<>();
+        for (LeafNode<ByteArray, HashableImpl<Integer>> leafNode : leafNodes) {
+            data.add(leafNode.getData().data);
+        }
+        return data;
+    }
+
     private static class ByteArray implements Comparable<ByteArray> {
 
         private final byte[] array;
@@ -0,0 +1,127 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapMerkleTreeTest {
+
+    private static final DigestHashBuilder HASH_BUILDER = new DigestHashBuilder("sha-1");
+
+    private static ByteBuffer leafDigests(int n) {
+        ByteBuffer buffer = ByteBuffer.allocate(n * 20);
+        for (int i = 0; i < n; i++) {
+            HASH_BUILDER.digest(BigInteger.valueOf(i).toByteArray()).writeTo(buffer);
+        }
+        return buffer.flip();
+    }
+
+    @Test
+    public void testSameRootAsMerkleTree() {
+        for (int fanout : new int[]{2, 3, 4, 16}) {
+            for (int n = 1; n <= 70; n++) {
+                ByteBuffer digests = leafDigests(n);
+                //tiny segments, so children and levels are spread over many of them
+                try (OffHeapMerkleTree tree = new OffHeapMerkleTree(digests, HASH_BUILDER, fanout, 20 * 2 * fanout)) {
+                    MerkleTree<Digest, Hashable<Digest>> expected = MerkleTree.fromDigests(digests, 20, HASH_BUILDER, fanout);
+                    assertEquals(expected.getRootHash(), tree.getRootHash(), n + " leafs, fanout " + fanout);
+                    assertEquals(expected.getTreeDepth(), tree.getTreeDepth());
+                    assertEquals(n, tree.getLeafCount());
+                    assertEquals(expected.getLeafHash(n - 1), tree.getLeafHash(n - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyTree() {
+        try (OffHeapMerkleTree tree = new OffHeapMerkleTree(ByteBuffer.allocate(0), HASH_BUILDER)) {
+            assertEquals(0, tree.getLeafCount());
+            assertEquals(-1, tree.getTreeDepth());
+            assertNull(tree.getRootHash());
+            assertNull(tree.getRootHashView());
+        }
+    }
+
+    @Test
+    public void testApplyBatchMatchesMerkleTree() {
+        ByteBuffer digests = leafDigests(1000);
+        MerkleTree<Digest, Hashable<Digest>> expected = MerkleTree.fromDigests(digests, 20, HASH_BUILDER, 4);
+        try (OffHeapMerkleTree tree = new OffHeapMerkleTree(digests, HASH_BUILDER, 4, 4096)) {
+            Random random = new Random(3);
+            for (int round = 0; round < 5; round++) {
+                Map<Integer, Digest> updates = new HashMap<>();
+                Map<Integer, Hashable<Digest>> expectedUpdates = new HashMap<>();
+                for (int i = 0; i < 100; i++) {
+                    Digest hash = HASH_BUILDER.digest(BigInteger.valueOf(-random.nextInt(10_000)).toByteArray());
+                    int index = random.nextInt(1000);
+                    updates.put(index, hash);
+                    expectedUpdates.put(index, () -> hash);
+                }
+                tree.applyBatch(updates);
+                expected.applyBatch(expectedUpdates);
+                assertEquals(expected.getRootHash(), tree.getRootHash());
+            }
+            Digest hash = HASH_BUILDER.digest(new byte[]{1, 2, 3});
+            tree.setLeafHash(999, hash);
+            expected.applyBatch(Map.of(999, () -> hash));
+            assertEquals(expected.getRootHash(), tree.getRootHash());
+
+            assertThrows(IllegalArgumentException.class, () -> tree.setLeafHash(1000, hash));
+            assertThrows(IllegalArgumentException.class, () -> tree.setLeafHash(0, Digest.of(new byte[16])));
+        }
+    }
+
+    @Test
+    public void testViewsAndLifecycle() {
+        OffHeapMerkleTree tree = new OffHeapMerkleTree(leafDigests(10), HASH_BUILDER);
+        ByteBuffer rootView = tree.getRootHashView();
+        assertTrue(rootView.isReadOnly());
+        assertTrue(rootView.isDirect());
+        assertEquals(20, rootView.remaining());
+        Digest rootHash = tree.getRootHash();
+
+        tree.setLeafHash(3, HASH_BUILDER.digest(new byte[]{9}));
+        //views are not copies
+        assertEquals(tree.getRootHash(), Digest.read(rootView.duplicate(), 20));
+        assertNotEquals(rootHash, tree.getRootHash());
+        assertEquals(5, tree.getNodeCount(1));
+        assertTrue(tree.getArenaBytes() >= (10 + 5 + 3 + 2 + 1) * 20);
+
+        //copies land at the position of the buffer and don't follow later updates
+        ByteBuffer copies = ByteBuffer.allocate(45);
+        copies.position(5);
+        tree.copyHash(tree.getTreeDepth(), 0, copies);
+        tree.copyHash(0, 3, copies);
+        assertEquals(45, copies.position());
+        copies.position(5);
+        assertEquals(tree.getRootHash(), Digest.read(copies, 20));
+        assertEquals(tree.getLeafHash(3), Digest.read(copies, 20));
+        tree.setLeafHash(3, HASH_BUILDER.digest(new byte[]{10}));
+        copies.position(25);
+        assertNotEquals(tree.getLeafHash(3), Digest.read(copies, 20));
+        assertThrows(IllegalArgumentException.class, () -> tree.copyHash(0, 3, ByteBuffer.allocate(19)));
+        assertThrows(IllegalArgumentException.class, () -> tree.copyHash(1, 5, ByteBuffer.allocate(20)));
+
+        tree.close();
+        assertThrows(IllegalStateException.class, tree::getRootHash);
+        assertThrows(IllegalStateException.class, () -> tree.setLeafHash(0, rootHash));
+        assertThrows(IllegalStateException.class, tree::getRootHashView);
+        assertThrows(IllegalStateException.class, tree::getLeafCount);
+        assertThrows(IllegalStateException.class, tree::getTreeDepth);
+        assertThrows(IllegalStateException.class, () -> tree.getNodeCount(1));
+        assertThrows(IllegalStateException.class, () -> tree.getHashView(0, 100));
+        assertThrows(IllegalStateException.class, () -> tree.copyHash(0, 0, ByteBuffer.allocate(20)));
+        assertThrows(IllegalStateException.class, () -> tree.getLeafHash(0));
+        assertThrows(IllegalStateException.class, tree::getArenaBytes);
+        OffHeapMerkleTree emptyTree = new OffHeapMerkleTree(ByteBuffer.allocate(0), HASH_BUILDER);
+        emptyTree.close();
+        assertThrows(IllegalStateException.class, emptyTree::getRootHash);
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapMerkleTree(ByteBuffer.allocate(30), HASH_BUILDER));
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapMerkleTree(leafDigests(2), HASH_BUILDER, 1));
+    }
+}
@@ -0,0 +1,195 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubtreeInternerTest {
+
+    private static final DigestHashBuilder HASH_BUILDER = new DigestHashBuilder("sha-1");
+
+    private static MerkleTree<Digest, Hashable<Digest>> treeOf(int n, int changedIndex) {
+        List<Digest> hashes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            hashes.add(HASH_BUILDER.digest(BigInteger.valueOf(i == changedIndex ? -i : i).toByteArray()));
+        }
+        return MerkleTree.fromHashes(hashes, HASH_BUILDER);
+    }
+
+    @Test
+    public void testIdenticalSubtreesAreShared() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(1024, -1);
+        MerkleTree<Digest, Hashable<Digest>> replica = treeOf(1024, -1);
+        MerkleTree<Digest, Hashable<Digest>> changed = treeOf(1024, 5);
+        Digest changedRootHash = changed.getRootHash();
+
+        interner.intern(tree);
+        //1024 + 512 + ... + 2 + 1 nodes
+        assertEquals(2047, interner.getPooledNodeCount());
+        interner.intern(replica);
+        assertEquals(2047, interner.getPooledNodeCount());
+        assertSame(tree.getRoot(), replica.getRoot());
+        interner.intern(changed);
+        //only the changed leaf and the path above it, up to the root at level 10, are not shared
+        assertEquals(2047 + 11, interner.getPooledNodeCount());
+        assertEquals(3, interner.getTreeCount());
+
+        assertEquals(changedRootHash, changed.getRootHash());
+        assertEquals(1024, changed.getLeafCount());
+        for (int i = 0; i < 1024; i++) {
+            assertEquals(treeOf(1024, 5).getLeafHash(i), changed.getLeafHash(i));
+        }
+        Queue<LeafNode<Digest, Hashable<Digest>>> diff = tree.diff(changed);
+        assertEquals(1, diff.size());
+        assertEquals(tree.getLeafHash(5), Objects.requireNonNull(diff.peek()).hash());
+        assertEquals(1, tree.symmetricDiff(changed).getChanged().size());
+    }
+
+    @Test
+    public void testInternedTreesAreReadOnly() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(10, -1);
+        assertFalse(tree.isReadOnly());
+        interner.intern(tree);
+        assertTrue(tree.isReadOnly());
+        Digest hash = HASH_BUILDER.digest(new byte[]{1});
+        assertThrows(IllegalStateException.class, () -> tree.applyBatch(Map.of(0, () -> hash)));
+        assertThrows(IllegalArgumentException.class, () -> interner.intern(tree));
+    }
+
+    @Test
+    public void testSharedNodesCantBeChanged() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(16, -1);
+        MerkleTree<Digest, Hashable<Digest>> bigger = treeOf(32, -1);
+        interner.intern(tree);
+        interner.intern(bigger);
+
+        Node<Digest> root = tree.getRoot();
+        Node<Digest> inner = (Node<Digest>) root.getLeftChild();
+        assertTrue(root.isShared());
+        //the left half of the bigger tree is the smaller tree, its root is an inner node there
+        assertSame(root, bigger.getRoot().getLeftChild());
+
+        Node<Digest> other = new Node<>(inner.getLevel() + 1, HASH_BUILDER);
+        Digest rootHash = tree.getRootHash();
+        assertThrows(IllegalStateException.class, () -> inner.setChild(0, inner.getRightChild()));
+        assertThrows(IllegalStateException.class, () -> inner.setLeftChild(inner.getRightChild()));
+        assertThrows(IllegalStateException.class, () -> inner.setRightChild(inner.getLeftChild()));
+        assertThrows(IllegalStateException.class, () -> inner.addChild(inner.getLeftChild()));
+        assertThrows(IllegalStateException.class, () -> inner.setHashBuilder(HASH_BUILDER));
+        assertThrows(IllegalStateException.class, () -> inner.setParent(other));
+        assertThrows(IllegalStateException.class, () -> other.addChild(inner));
+        assertTrue(other.getChildren().isEmpty());
+        assertEquals(rootHash, tree.getRootHash());
+
+        //a released tree can be interned again
+        interner.release(tree);
+        interner.intern(tree);
+        assertEquals(rootHash, tree.getRootHash());
+    }
+
+    /**
+     * A hash type with no equals nor hashCode, equal hashes are only told apart by compareTo
+     */
+    private static final class ComparableOnlyHash implements Comparable<ComparableOnlyHash> {
+
+        private final long value;
+
+        private ComparableOnlyHash(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(ComparableOnlyHash other) {
+            return Long.compare(value, other.value);
+        }
+    }
+
+    @Test
+    public void testHashesArePooledByCompareTo() {
+        HashBuilder<ComparableOnlyHash> hashBuilder = hashes -> {
+            long value = 17;
+            for (ComparableOnlyHash hash : hashes) {
+                value = value * 31 + hash.value;
+            }
+            return new ComparableOnlyHash(value);
+        };
+        SubtreeInterner<ComparableOnlyHash, Hashable<ComparableOnlyHash>> interner = new SubtreeInterner<>();
+        for (int copy = 0; copy < 2; copy++) {
+            //a new hash object for every leaf of every copy
+            List<ComparableOnlyHash> hashes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                hashes.add(new ComparableOnlyHash(i));
+            }
+            interner.intern(MerkleTree.fromHashes(hashes, hashBuilder));
+        }
+        //8 + 4 + 2 + 1 nodes, the copy is shared whole
+        assertEquals(15, interner.getPooledNodeCount());
+    }
+
+    @Test
+    public void testSharedNodesHaveNoPosition() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(16, -1);
+        MerkleTree<Digest, Hashable<Digest>> bigger = treeOf(32, -1);
+        interner.intern(tree);
+        interner.intern(bigger);
+
+        //the root of the smaller tree is the left inner node of the bigger one
+        Node<Digest> root = tree.getRoot();
+        assertThrows(IllegalStateException.class, root::isRootNode);
+        assertThrows(IllegalStateException.class, root::isLeft);
+        assertThrows(IllegalStateException.class, root::isRight);
+        assertThrows(IllegalStateException.class, bigger.getRoot()::isRootNode);
+        AbstractNode<Digest> rightChild = root.getRightChild();
+        assertTrue(rightChild.isShared());
+        assertThrows(IllegalStateException.class, rightChild::isRight);
+        assertThrows(IllegalStateException.class, rightChild::isLeft);
+        AbstractNode<Digest> rightLeaf = rightChild.getRightChild().getRightChild().getRightChild();
+        assertTrue(rightLeaf.isShared());
+        assertThrows(IllegalStateException.class, rightLeaf::isRight);
+
+        //a tree that isn't interned still knows its positions
+        MerkleTree<Digest, Hashable<Digest>> plain = treeOf(16, -1);
+        assertTrue(plain.getRoot().isRootNode());
+        assertTrue(plain.getRoot().getRightChild().isRight());
+        assertTrue(plain.getRoot().getLeftChild().isLeft());
+    }
+
+    @Test
+    public void testReleaseDropsUnusedNodes() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = treeOf(1024, -1);
+        MerkleTree<Digest, Hashable<Digest>> replica = treeOf(1024, -1);
+        MerkleTree<Digest, Hashable<Digest>> changed = treeOf(1024, 5);
+        interner.intern(tree);
+        interner.intern(replica);
+        interner.intern(changed);
+
+        interner.release(changed);
+        assertEquals(2047, interner.getPooledNodeCount());
+        interner.release(tree);
+        assertEquals(2047, interner.getPooledNodeCount());
+        interner.release(replica);
+        assertEquals(0, interner.getPooledNodeCount());
+        assertEquals(0, interner.getTreeCount());
+        assertThrows(IllegalArgumentException.class, () -> interner.release(replica));
+
+        //released trees stay usable for reads
+        assertEquals(treeOf(1024, 5).getRootHash(), changed.getRootHash());
+    }
+
+    @Test
+    public void testEmptyTree() {
+        SubtreeInterner<Digest, Hashable<Digest>> interner = new SubtreeInterner<>();
+        MerkleTree<Digest, Hashable<Digest>> tree = MerkleTree.fromHashes(new ArrayList<>(), HASH_BUILDER);
+        interner.intern(tree);
+        assertEquals(0, interner.getPooledNodeCount());
+        interner.release(tree);
+    }
+}
@@ -0,0 +1,138 @@
+package pt.shorty.merkleTree;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WindowedMerkleTreeTest {
+
+    private static final DigestHashBuilder DIGEST_BUILDER = new DigestHashBuilder("sha-1");
+
+    private static final LogHashBuilder<Digest> HASH_BUILDER = DIGEST_BUILDER.forLog();
+
+    private static final LongFunction<Digest> EPOCH_HASHER = WindowedMerkleTree.epochDigests(DIGEST_BUILDER);
+
+    private static Digest boundRoot(long epoch, MerkleLog<Digest> log) {
+        return HASH_BUILDER.hash(Arrays.asList(EPOCH_HASHER.apply(epoch), log.getRootHash()));
+    }
+
+    private static Digest eventHash(long timestamp, int index) {
+        return DIGEST_BUILDER.digest(BigInteger.valueOf(timestamp * 1000 + index).toByteArray());
+    }
+
+    /**
+     * Root of a window holding events 0 to eventsPerEpoch - 1 at the start of each of the supplied epochs
+     */
+    private static Digest expectedRoot(long epochMillis, int eventsPerEpoch, long... epochs) {
+        List<Digest> bucketRoots = new ArrayList<>();
+        for (long epoch : epochs) {
+            MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+            for (int i = 0; i < eventsPerEpoch; i++) {
+                log.appendHash(eventHash(epoch * epochMillis, i));
+            }
+            bucketRoots.add(boundRoot(epoch, log));
+        }
+        return HASH_BUILDER.hash(bucketRoots);
+    }
+
+    @Test
+    public void testRootOfWindow() {
+        WindowedMerkleTree<Digest> window = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 3);
+        assertNull(window.getRootHash());
+        assertEquals(Long.MIN_VALUE, window.getNewestEpoch());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, window.appendHash(0, eventHash(0, i)));
+            window.appendHash(2000, eventHash(2000, i));
+        }
+        assertEquals(10, window.getLeafCount());
+        assertEquals(5, window.getBucketLeafCount(0));
+        assertEquals(0, window.getBucketLeafCount(1));
+        assertNull(window.getBucketRootHash(1));
+        assertEquals(expectedRoot(1000, 5, 0, 2), window.getRootHash());
+    }
+
+    @Test
+    public void testExpiredBucketsAreDropped() {
+        WindowedMerkleTree<Digest> window = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 3);
+        for (long epoch = 0; epoch < 6; epoch++) {
+            for (int i = 0; i < 4; i++) {
+                window.appendHash(epoch * 1000, eventHash(epoch * 1000, i));
+            }
+        }
+        assertEquals(5, window.getNewestEpoch());
+        assertEquals(3, window.getOldestEpoch());
+        assertEquals(12, window.getLeafCount());
+        assertEquals(0, window.getBucketLeafCount(2));
+        assertEquals(expectedRoot(1000, 4, 3, 4, 5), window.getRootHash());
+
+        window.advanceTo(7000);
+        assertEquals(4, window.getLeafCount());
+        assertEquals(expectedRoot(1000, 4, 5), window.getRootHash());
+
+        window.advanceTo(1_000_000);
+        assertEquals(0, window.getLeafCount());
+        assertNull(window.getRootHash());
+        window.advanceTo(0);
+        assertEquals(1000, window.getNewestEpoch());
+    }
+
+    @Test
+    public void testLateEvents() {
+        WindowedMerkleTree<Digest> window = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 3);
+        window.appendHash(2000, eventHash(2000, 0));
+        Digest rootHash = window.getRootHash();
+        window.appendHash(0, eventHash(0, 0));
+        assertNotEquals(rootHash, window.getRootHash());
+        assertEquals(expectedRoot(1000, 1, 0, 2), window.getRootHash());
+        assertThrows(IllegalArgumentException.class, () -> window.appendHash(-1, eventHash(-1, 0)));
+        assertEquals(2, window.getLeafCount());
+    }
+
+    @Test
+    public void testIncrementalRootMatchesRebuild() {
+        WindowedMerkleTree<Digest> window = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 100, 4);
+        for (int i = 0; i < 1000; i++) {
+            window.appendHash(i, eventHash(i, 0));
+            long newest = window.getNewestEpoch();
+            List<Digest> bucketRoots = new ArrayList<>();
+            for (long epoch = Math.max(0, newest - 3); epoch <= newest; epoch++) {
+                MerkleLog<Digest> log = new MerkleLog<>(HASH_BUILDER);
+                for (long timestamp = epoch * 100; timestamp <= Math.min(i, epoch * 100 + 99); timestamp++) {
+                    log.appendHash(eventHash(timestamp, 0));
+                }
+                bucketRoots.add(boundRoot(epoch, log));
+            }
+            assertEquals(HASH_BUILDER.hash(bucketRoots), window.getRootHash());
+        }
+        assertEquals(400, window.getLeafCount());
+    }
+
+    @Test
+    public void testRootBindsEpochs() {
+        //the same events in other epochs, and the same buckets with a gap between them
+        WindowedMerkleTree<Digest> window = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 4);
+        WindowedMerkleTree<Digest> shifted = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 4);
+        WindowedMerkleTree<Digest> gap = new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 4);
+        window.appendHash(0, eventHash(0, 0));
+        window.appendHash(1000, eventHash(0, 1));
+        shifted.appendHash(5000, eventHash(0, 0));
+        shifted.appendHash(6000, eventHash(0, 1));
+        gap.appendHash(0, eventHash(0, 0));
+        gap.appendHash(2000, eventHash(0, 1));
+        assertNotEquals(window.getRootHash(), shifted.getRootHash());
+        assertNotEquals(window.getRootHash(), gap.getRootHash());
+        assertEquals(window.getBucketRootHash(0), shifted.getBucketRootHash(5));
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 0, 3));
+        assertThrows(IllegalArgumentException.class, () -> new WindowedMerkleTree<>(HASH_BUILDER, EPOCH_HASHER, 1000, 0));
+    }
+}